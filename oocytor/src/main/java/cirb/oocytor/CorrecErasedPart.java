@@ -221,12 +221,19 @@ public class CorrecErasedPart implements PlugIn
                     float rad = (float) (circle[2]*1.4);
                     float cx = (float) circle[0];
                     float cy = (float) circle[1];
+                    double[] angles = RadialSampler.angles(nang);
+                    RadialSampler rays = new RadialSampler(cx, cy, rad, angles, 30);
+                    double[] exits = RayPolygon.exitDistances(fp, cx, cy, angles);
+                    double[] vals = new double[rays.maxLength()];
+                    ImageProcessor ip = imp.getProcessor();
+                    float[] pos = new float[2];
                     for (int a=0; a<nang; a++)
                     {       
 			ang = ang + dang;
-			float[] res = getAnglePosition(cx, cy, rad, ang, fp, imp);
-			xpts[a] = res[0];
-			ypts[a] = res[1];
+			int n = rays.sample(ip, a, vals);
+			getAnglePosition(cx, cy, rad, ang, exits[a], vals, n, pos);
+			xpts[a] = pos[0];
+			ypts[a] = pos[1];
                     }
 
 			float[] rads = getRadiusInside(xpts, ypts, cx, cy);
@@ -387,30 +394,12 @@ public class CorrecErasedPart implements PlugIn
 	}
 
         
-        // find current radius
-	public float[] getAnglePosition( float cx, float cy, float radius, double ang, FloatPolygon fp, ImagePlus img )
+	/** \brief Find current radius: position of the local maxima of the profile vals (n points) close to the contour along the ray at angle ang. 
+	 * exit is the distance from the center at which the ray leaves the contour. Fill res with its x, y */
+	public void getAnglePosition( float cx, float cy, float radius, double ang, double exit, double[] vals, int n, float[] res )
 	{
-		float[] res = new float[2];
-		res[0] = (float) 0.0;
-		res[1] = (float) 0.0;
-		Line myline = new Line(cx, cy, cx+radius*Math.cos(ang), cy+radius*Math.sin(ang));
-		myline.setStrokeWidth(30);  // prev 30
-		img.setRoi(myline);
-		double[] vals = myline.getPixels();
-
-		int xcur;
-		int ycur;
-
-		// detect position of the border (segmentation from the network)
-		int i = 0;
-		xcur = (int) ((float) cx + (float) (radius*Math.cos(ang) * i/vals.length));	
-		ycur = (int) ((float) cy + (float) (radius*Math.sin(ang) * i/vals.length));
-		while ( fp.contains(xcur, ycur ))
-		{
-			i++;
-			xcur = (int) ((float) cx + (float) (radius*Math.cos(ang) * i/vals.length));	
-			ycur = (int) ((float) cy + (float) (radius*Math.sin(ang) * i/vals.length));
-		}
+		// position of the border (segmentation from the network)
+		int i = RayPolygon.exitIndex( exit, radius, n );
 
 		// found the border, look for local maxima whithin reach
 		int mpos = i;
@@ -418,7 +407,7 @@ public class CorrecErasedPart implements PlugIn
 		int deb = i-size;
 		if ( deb<0) deb = 0;
 		int end = i+size;
-		if (end >vals.length) end = vals.length;
+		if (end >n) end = n;
 		double max = 0;
 		for ( int j=deb; j<end; j++ )
 		{
@@ -429,9 +418,8 @@ public class CorrecErasedPart implements PlugIn
 			}
 		}	
 
-		res[0] = (float) cx + (float) (radius*Math.cos(ang) * mpos/vals.length);	
-		res[1] = (float) cy + (float) (radius*Math.sin(ang) * mpos/vals.length);	
-		return res;
+		res[0] = (float) cx + (float) (radius*Math.cos(ang) * mpos/n);	
+		res[1] = (float) cy + (float) (radius*Math.sin(ang) * mpos/n);
 	}
 
 
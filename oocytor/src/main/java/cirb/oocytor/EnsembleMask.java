@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import java.util.stream.IntStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * \brief 8-bit image of the ensemble average mask sent back by python
+ *
+ * The networks are averaged by the python task (RunUNet.predict with average), 
+ * the float mean is converted here directly from its shared memory image, without ImagePlus copies,
+ * with the same scaling as ImageJ "8-bit" on the float stack (display range of the first slice).
+ *
+ * @author Gaelle Letort
+ */
+public class EnsembleMask
+{
+	private EnsembleMask(){}
+
+	/** \brief 8-bit image of the average mask, scaled on the range of the first slice */
+	public static < T extends RealType< T > > ImagePlus toByte( RandomAccessibleInterval< T > mask, String title )
+	{
+		final long[] dims = mask.dimensionsAsLongArray();
+		final int width = (int) dims[ 0 ];
+		final int height = ( dims.length > 1 ) ? (int) dims[ 1 ] : 1;
+		final int planeSize = width * height;
+		int nplanes = 1;
+		for ( int d = 2; d < dims.length; d++ )
+			nplanes *= (int) dims[ d ];
+
+		// display range of the current (first) slice, as ImageJ converts the float stack
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+		final Cursor< T > first = Views.flatIterable( mask ).cursor();
+		for ( int i = 0; i < planeSize; i++ )
+		{
+			final double v = first.next().getRealDouble();
+			if ( v < min ) min = v;
+			if ( v > max ) max = v;
+		}
+		final double scale = ( max > min ) ? 255.0 / ( max - min ) : 1.0;
+		final double offset = min;
+
+		// flat iteration order is x, y then all the other dimensions, so one plane after the other
+		final ByteProcessor[] planes = new ByteProcessor[ nplanes ];
+		IntStream.range( 0, nplanes ).parallel().forEach( p ->
+		{
+			final Cursor< T > cursor = Views.flatIterable( mask ).cursor();
+			cursor.jumpFwd( (long) p * planeSize );
+			final byte[] pixels = new byte[ planeSize ];
+			for ( int i = 0; i < planeSize; i++ )
+			{
+				double v = ( cursor.next().getRealFloat() - offset ) * scale;
+				if ( v < 0 ) v = 0;
+				if ( v > 255 ) v = 255;
+				pixels[ i ] = (byte) Math.round( v );
+			}
+			planes[ p ] = new ByteProcessor( width, height, pixels );
+		} );
+
+		final ImageStack stack = new ImageStack( width, height );
+		for ( ByteProcessor bp : planes )
+			stack.addSlice( bp );
+		final ImagePlus res = new ImagePlus( title, stack );
+		res.setDimensions( dimension( dims, 2 ), dimension( dims, 3 ), dimension( dims, 4 ) );
+		return res;
+	}
+
+	/** \brief size of the mask along dimension d (channel, slice, frame), 1 if absent */
+	private static int dimension( long[] dims, int d )
+	{
+		return ( d < dims.length ) ? (int) dims[ d ] : 1;
+	}
+}
@@ -45,6 +45,8 @@ import java.awt.Color;
 import java.awt.Font;
 import java.io.File;
 import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
 import javax.swing.ImageIcon;
 
 /**
@@ -71,6 +73,7 @@ public class FindNEBD implements PlugIn
 	private String model_path = "";
 	private boolean visible = true;
 	private boolean standardize = false;
+	private int batch_slices = 30; // nb of slices from several images to send together to the network
    
         
         /** \brief Dialog window 
@@ -299,7 +302,21 @@ public class FindNEBD implements PlugIn
         		File thedir = new File(dir); 
         		File[] fileList = thedir.listFiles(); 
 		     
-        		String results = "FileName , NEBDSlice\n";
+        		StringBuilder results = new StringBuilder( "FileName , NEBDSlice\n" );
+        		// images with only one slice
+        		Set<String> singles = new HashSet<String>();
+        		// small images are segmented together, results come back in the same order
+        		UNetBatcher batcher = new UNetBatcher( "nebd_detector.py", model_path, 32, standardize, debug, batch_slices, 
+        				( name, unet ) ->
+        				{
+        					twins = singles.contains( name );
+        					int nebd = -1;
+        					if ( unet != null ) 
+        						nebd = getNEBDFromUnet( unet );
+        					results.append( name+" , "+nebd+"\n" );
+        				} );
+        		// single images were sent as two identical slices, each normalised as a whole
+        		batcher.setRowNormalisedSingles( false );
         		for (File fily : fileList) 
         		{
         			if ( fily.isFile() )
@@ -311,18 +328,25 @@ public class FindNEBD implements PlugIn
         					String extension = inname.substring(j);
         					if ( extension.equals(".tif") | extension.equals(".TIF") | extension.equals(".png") | extension.equals(".jpg") | extension.equals(".JPG") )
         					{
-        						int nebd = lookForNEBD( inname );
-        						results += inname+" , "+nebd+"\n";
+        						IJ.log("Doing "+dir+inname);
+        						rm.reset();
+        						openResetImage( dir+inname );
+        						util.reOrder(imp);
+        						if ( imp.getNSlices() == 1 )
+        							singles.add( inname );
+        						batcher.add( inname, imp );
+        						util.close(imp);
         					}
                     	}
         			}
         		}
+        		batcher.flush();
         		
         		System.gc(); // garbage collector   
         		try 
         		{
         			PrintWriter writer = new PrintWriter(new File(dir+"/nebd_times.csv"));
-        			writer.write(results);
+        			writer.write(results.toString());
         			writer.close();
         			IJ.showStatus("Done");
         		} 
@@ -334,6 +358,9 @@ public class FindNEBD implements PlugIn
             	int nebd = lookForNEBD( inname );
             	IJ.log( "Filename: "+inname+" NEBD time: "+nebd );
         	}
+        	
+        	// stop the python services used for the networks
+        	ServicePool.closeAll();
     }
 
     
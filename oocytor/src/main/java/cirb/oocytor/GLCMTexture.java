@@ -32,9 +32,10 @@
  */
 package cirb.oocytor;
 
+import ij.IJ;
 import ij.gui.*;
 import ij.process.*;
-import java.awt.*;
+import java.util.Arrays;
 import ij.measure.ResultsTable;
 
 /**
@@ -50,53 +51,278 @@ public class GLCMTexture
 	int step = 1;
 	double angle = 0;
 
+	static final String[] featureNames = {"Angular2Moment", "Entropy", "InverseDiffMoment", "ClusterTendency", "ClusterShade", "Correlation", "Contrast", "Homogeneity", "Variance"};
+
+	// extra offsets, measured in the same pass as (step, angle)
+	private int[] distances = new int[0];
+	private int[] angles = new int[0]; // in degrees
+	
+	// one matrix by different offset (dx, dy); offset 0 is (step, angle)
+	private int noff = 0;
+	private int[] offx = new int[0];
+	private int[] offy = new int[0];
+	private int[] extraOffset = new int[0]; // matrix of each extra (distance, angle)
+	
+	// gray levels: 256 keeps the pixel values, less levels are binned between the min and max (or 1% and 99% percentiles) of the roi
+	private int levels = 256;
+	private boolean percentile = false;
+	private final int[] lut = new int[256];
+	private final int[] hist = new int[256];
+	
+	// reusable buffers: one GLCMTexture object per thread
+	// the matrices are symmetric: only cells i<=j are stored, packed in j*(j+1)/2+i
+	// used cells are listed as i*256+j
+	private int[][] counts = new int[0][];
+	private int[][] nonzero = new int[0][];
+	private int[] nnz = new int[0];
+	private int[] pixelCount = new int[0];
+	private final double[] px = new double[256];
+
+	// (i-j)^2, 1/(1+(i-j)^2) and (1+|i-j|)^2, indexed by i-j+255
+	private static final double[] dif2 = new double[511];
+	private static final double[] idmw = new double[511];
+	private static final double[] homd = new double[511];
+	static
+	{
+		for ( int d = -255; d <= 255; d++ )
+		{
+			dif2[d+255] = d*d;
+			idmw[d+255] = 1.0/(1.0+d*d);
+			homd[d+255] = (1.0+Math.abs(d))*(1.0+Math.abs(d));
+		}
+	}
+
+	/** \brief True if all the directions are on the pixel grid: 0, 45, 90 or 135 degrees */
+	public static boolean validAngles( int[] angs )
+	{
+		for ( int a : angs )
+		{
+			if ( a != 0 && a != 45 && a != 90 && a != 135 )
+				return false;
+		}
+		return true;
+	}
+
+	/** \brief Also measure the GLCMs at each distance (pixels) in each direction (degrees, 0, 45, 90 or 135, see validAngles) */
+	public void setOffsets( int[] dists, int[] angs )
+	{
+		noff = 0;
+		if ( !validAngles( angs ) )
+		{
+			IJ.error( "GLCM angles can only be 0, 45, 90 or 135 degrees, extra directions not measured" );
+			distances = new int[0];
+			angles = new int[0];
+			return;
+		}
+		distances = dists.clone();
+		angles = angs.clone();
+	}
+
+	/** \brief Number of gray levels (8, 16, 32, 64 or 256), and binning between min-max or percentiles 1-99% of the roi pixels */
+	public void setQuantisation( int nlevels, boolean percentiles )
+	{
+		if ( nlevels < 2 || nlevels > 256 ) nlevels = 256;
+		levels = nlevels;
+		percentile = percentiles;
+		noff = 0;
+	}
+
+	/** \brief List the different (dx, dy) offsets to measure and allocate their matrix */
+	private void initOffsets()
+	{
+		int n = 1 + distances.length*angles.length;
+		offx = new int[n];
+		offy = new int[n];
+		extraOffset = new int[n-1];
+		offx[0] = (int) (step * Math.cos(angle));
+		offy[0] = (int) (step * Math.sin(angle));
+		noff = 1;
+		for ( int d = 0; d < distances.length; d++ )
+		{
+			for ( int a = 0; a < angles.length; a++ )
+			{
+				double rad = angles[a]*Math.PI/180.0;
+				int dx = distances[d] * (int) Math.round(Math.cos(rad));
+				int dy = distances[d] * (int) Math.round(Math.sin(rad));
+				int o = 0;
+				while ( o < noff && (offx[o] != dx || offy[o] != dy) ) o++;
+				if ( o == noff )
+				{
+					offx[noff] = dx;
+					offy[noff] = dy;
+					noff++;
+				}
+				extraOffset[d*angles.length+a] = o;
+			}
+		}
+		counts = new int[noff][levels*(levels+1)/2];
+		nonzero = new int[noff][1024];
+		nnz = new int[noff];
+		pixelCount = new int[noff];
+	}
+
 	public void calcTexture(ImageProcessor ip, Roi roi, ResultsTable rt, String name )
 	{
-		double[][] glcm = buildGLCM(ip, roi);
-		getGLCMFeatures( glcm, rt, name );
+		buildGLCM(ip, roi);
+		getGLCMFeatures( rt, name );
 	}
 
-	public double[][] buildGLCM(ImageProcessor ip, Roi roi)
+	/** \brief Count the co-occurences of gray levels inside the roi, for all the offsets in one pass */
+	public void buildGLCM(ImageProcessor ip, Roi roi)
 	{
-		double[][] glcm = new double[256][256];
-		int dx = (int) (step * Math.cos(angle));
-		int dy = (int) (step * Math.sin(angle));
-		int i, j;
-		int pixelCount = 0;
-
-		Rectangle rec = roi.getBounds();
-		// fill matrix
-		for ( int x = rec.x; x< (rec.x+rec.width); x++ )
+		if ( noff == 0 ) initOffsets();
+		reset();
+		accumulate(ip, RoiMask.get(roi, roi.getPosition()));
+	}
+
+	/** \brief Empty the matrices, only the used cells */
+	private void reset()
+	{
+		for ( int o = 0; o < noff; o++ )
+		{
+			for ( int k = 0; k < nnz[o]; k++ )
+				counts[o][packed(nonzero[o][k])] = 0;
+			nnz[o] = 0;
+			pixelCount[o] = 0;
+		}
+	}
+
+	/** \brief Gray level of each pixel value */
+	private void buildLUT(ImageProcessor ip, RoiMask mask)
+	{
+		if ( levels == 256 )
+		{
+			for ( int v = 0; v < 256; v++ ) lut[v] = v;
+			return;
+		}
+		// values of the pixels that can start a pair
+		Arrays.fill( hist, 0 );
+		int n = 0;
+		for ( int y = mask.firstRow(); y < mask.endRow(); y++ )
 		{
-			for ( int y = rec.y; y < (rec.y+rec.height); y++ )
+			int[] runs = mask.runs(y);
+			for ( int r = 0; r < runs.length; r += 2 )
 			{
-				if ( roi.contains(x,y) && roi.contains(x+dx, y+dy) )
+				for ( int x = runs[r]; x < runs[r+1]; x++ )
 				{
-					if ( ip.getPixel(x,y) > 0 )
+					int v = ( ip.getPixel(x,y) > 0 ) ? 0xff & ip.getPixel(x, y) : 0;
+					if ( v > 0 ) { hist[v]++; n++; }
+				}
+			}
+		}
+		int lo = 1;
+		int hi = 255;
+		if ( n > 0 )
+		{
+			int low = percentile ? (int) (0.01*n) : 0;
+			int high = percentile ? (int) Math.ceil(0.99*n) - 1 : n - 1;
+			int cum = 0;
+			lo = -1;
+			for ( int v = 0; v < 256; v++ )
+			{
+				cum += hist[v];
+				if ( lo < 0 && cum > low ) lo = v;
+				if ( cum > high ) { hi = v; break; }
+			}
+		}
+		for ( int v = 0; v < 256; v++ )
+		{
+			int q = (int) Math.floor( ((double) (v - lo)) * levels / (hi - lo + 1) );
+			lut[v] = Math.max( 0, Math.min( levels-1, q ) );
+		}
+	}
+
+	/** \brief Add the pairs (x,y), (x+dx,y+dy) of pixels inside the mask, and with first pixel >0 */
+	private void accumulate(ImageProcessor ip, RoiMask mask)
+	{
+		final int w = ip.getWidth();
+		final int h = ip.getHeight();
+		final byte[] pix = (ip.getPixels() instanceof byte[]) ? (byte[]) ip.getPixels() : null;
+		buildLUT(ip, mask);
+		for ( int y = mask.firstRow(); y < mask.endRow(); y++ )
+		{
+			int[] runs = mask.runs(y);
+			for ( int r = 0; r < runs.length; r += 2 )
+			{
+				for ( int x = runs[r]; x < runs[r+1]; x++ )
+				{
+					// outside of the image, getPixel is 0
+					int i;
+					if ( pix != null )
+						i = ( x >= 0 && x < w && y >= 0 && y < h ) ? pix[y*w+x] & 0xff : 0;
+					else
+						i = ( ip.getPixel(x,y) > 0 ) ? 0xff & ip.getPixel(x, y) : 0;
+					if ( i == 0 ) continue;
+					i = lut[i];
+					for ( int o = 0; o < noff; o++ )
 					{
-						i = 0xff & ip.getPixel(x, y);
-						j = 0xff & ip.getPixel( x+dx, y+dy);
-						glcm [i][j]++;		  			
-						glcm [j][i]++;		  			
-						pixelCount+=2;
+						int xj = x+offx[o];
+						int yj = y+offy[o];
+						if ( !mask.contains(xj, yj) ) continue;
+						int j;
+						if ( pix != null )
+							j = ( xj >= 0 && xj < w && yj >= 0 && yj < h ) ? pix[yj*w+xj] & 0xff : 0;
+						else
+							j = 0xff & ip.getPixel(xj, yj);
+						j = lut[j];
+						// (i,j) and (j,i)
+						add( o, Math.min(i,j), Math.max(i,j) );
+						pixelCount[o] += 2;
 					}
 				}
 			}
 		}
+	}
 
-		// convert to proba
-		for ( int a = 0; a < 256; a++ )
+	/** \brief Count the pair (i,j) and (j,i), i<=j */
+	private void add( int o, int i, int j )
+	{
+		int ind = j*(j+1)/2 + i;
+		if ( counts[o][ind] == 0 )
 		{
-			for (int b=0; b < 256; b++ )
+			if ( nnz[o] == nonzero[o].length )
+				nonzero[o] = Arrays.copyOf( nonzero[o], 2*nnz[o] );
+			nonzero[o][nnz[o]++] = (i<<8) | j;
+		}
+		counts[o][ind] += ( i == j ) ? 2 : 1;
+	}
+
+	/** \brief Index in the packed matrix of the cell i*256+j */
+	private static int packed( int cell )
+	{
+		int j = cell & 0xff;
+		return j*(j+1)/2 + (cell >> 8);
+	}
+	
+	/** \brief Add the features of all the offsets: (step, angle) with the original names, 
+	 * the extra offsets with _d(distance)_a(angle) suffix and their mean over the angles with _d(distance)_mean */
+	public void getGLCMFeatures(ResultsTable rt, String name)
+	{
+		double[][] feats = new double[noff][];
+		for ( int o = 0; o < noff; o++ )
+			feats[o] = getFeatures(o);
+		
+		for ( int f = 0; f < featureNames.length; f++ )
+			rt.addValue(name+"GLCM"+featureNames[f], feats[0][f]);
+		for ( int d = 0; d < distances.length; d++ )
+		{
+			double[] mean = new double[featureNames.length];
+			for ( int a = 0; a < angles.length; a++ )
 			{
-				glcm[a][b] /= pixelCount;
+				double[] cur = feats[extraOffset[d*angles.length+a]];
+				for ( int f = 0; f < featureNames.length; f++ )
+				{
+					rt.addValue(name+"GLCM"+featureNames[f]+"_d"+distances[d]+"_a"+angles[a], cur[f]);
+					mean[f] += cur[f]/angles.length;
+				}
 			}
+			for ( int f = 0; f < featureNames.length; f++ )
+				rt.addValue(name+"GLCM"+featureNames[f]+"_d"+distances[d]+"_mean", mean[f]);
 		}
-		return glcm;
 	}
 	
-	// calculate the sum of all glcm elements
-	public void getGLCMFeatures(double[][] glcm, ResultsTable rt, String name)
+	/** \brief Calculate all the features of the matrix o from its non-empty cells (normalised to probabilities), in the order of featureNames */
+	public double[] getFeatures(int o)
 	{
 		double asm = 0; // homogeneity
 		double entropy = 0.0; //disorder/complexity
@@ -108,83 +334,67 @@ public class GLCMTexture
 		double homogen = 0.0; // homogeneity, closeness of elements distributions in GLCM to diagonal
 		double variance = 0.0; // variance, graly levels spreading
 
-		double[] stats = getMeanDev(glcm);
+		// row by row order
+		Arrays.sort( nonzero[o], 0, nnz[o] );
+		double[] stats = getMeanDev(o);
 
-		for (int i=0; i<256; i++)  
+		for ( int k = 0; k < nnz[o]; k++ )
 		{
-			for (int j=0; j<256; j++) 
+			int cell = nonzero[o][k];
+			int i = cell >> 8;
+			int j = cell & 0xff;
+			// off diagonal cells count for (i,j) and (j,i)
+			double p = ((double) counts[o][packed(cell)]) / pixelCount[o];
+			double mult = ( i == j ) ? 1 : 2;
+			int d = i-j+255;
+			double c = i+j-stats[0]-stats[1];
+			double c2 = c*c;
+			asm += mult*p*p;
+			entropy -= mult*p*Math.log(p);
+			idm += mult*idmw[d]*p;
+			clus += mult*c2 * p;
+			shade += mult*c2*c * p;
+			correlation += mult*i*j*p;
+			contrast += mult*dif2[d] * p;
+			homogen += mult*p / homd[d];
+			double vi = i-stats[0];
+			double vj = j-stats[1];
+			variance += vi*vi*p + vj*vj*p;
+			if ( i != j )
 			{
-				asm += glcm[i][j]*glcm[i][j];
-				if ( glcm[i][j] !=0 )
-					entropy -= glcm[i][j]*Math.log(glcm[i][j]);
-				idm += ((1.0/(1.0+(Math.pow(i-j,2))))*glcm[i][j]);
-				clus += Math.pow(i+j-stats[0]-stats[1], 2) * glcm[i][j];
-				shade += Math.pow(i+j-stats[0]-stats[1], 3) * glcm[i][j];
-				correlation += i*j*glcm[i][j];
-				contrast += Math.pow(i-j, 2) * glcm[i][j];
-				homogen += glcm[i][j] / Math.pow(1+Math.abs(i-j),2);
-				variance += Math.pow(i-stats[0], 2)*glcm[i][j] + Math.pow(j-stats[1],2)*glcm[i][j];
+				vi = j-stats[0];
+				vj = i-stats[1];
+				variance += vi*vi*p + vj*vj*p;
 			}
 		}
 
 		correlation = (correlation - stats[0]*stats[1])/(stats[2]*stats[3]);
-		rt.addValue(name+"GLCMAngular2Moment", asm);
-		rt.addValue(name+"GLCMEntropy", entropy);
-		rt.addValue(name+"GLCMInverseDiffMoment", idm);
-		rt.addValue(name+"GLCMClusterTendency", clus);
-		rt.addValue(name+"GLCMClusterShade", shade);
-		rt.addValue(name+"GLCMCorrelation", correlation);
-		rt.addValue(name+"GLCMContrast", contrast);
-		rt.addValue(name+"GLCMHomogeneity", homogen);
-		rt.addValue(name+"GLCMVariance", variance);
+		return new double[] {asm, entropy, idm, clus, shade, correlation, contrast, homogen, variance};
 	}
 	
-
-
-	public double[] getMeanDev(double[][] glcm)
+	/** \brief Means (x, y) and variances (x, y) of the marginal distributions of the matrix o (same in x and y, the matrix is symmetric) */
+	public double[] getMeanDev(int o)
 	{
-		double [] px = new double [256];
-		double [] py = new double [256];
 		double[] res = new double[4];
-		res[0] = 0.0; //meanx
-		res[1] = 0.0; // meany
-		res[2] = 0.0; //stdx
-		res[3] = 0.0; //stdy
-
-		// First, initialize the arrays to 0
-		for (int i = 0;  i < 256; i++)
-		{
-			px[i] = 0.0;
-			py[i] = 0.0;
-		}
-
-		// sum the glcm rows to Px(i)
-		for (int i = 0;  i < 256; i++) 
-		{
-			for (int j = 0; j < 256; j++) 
-			{
-				px[i] += glcm [i][j];
-			}
-			res[0] += (i*px[i]);
-		}
-
-		// sum the glcm rows to Py(j)
-		for (int j = 0;  j < 256; j++) 
+		Arrays.fill( px, 0 );
+		for ( int k = 0; k < nnz[o]; k++ )
 		{
-			for (int i = 0; i < 256; i++) 
-			{
-				py[j] += glcm [i][j];
-			}
-			res[1] += j*py[j];
+			int cell = nonzero[o][k];
+			double p = ((double) counts[o][packed(cell)]) / pixelCount[o];
+			px[cell >> 8] += p;
+			if ( (cell >> 8) != (cell & 0xff) )
+				px[cell & 0xff] += p;
 		}
 
-		// calculate stdx and stdy
-		for (int i = 0;  i < 256; i++) 
+		for ( int i = 0; i < levels; i++ )
+			res[0] += i*px[i];
+		for ( int i = 0; i < levels; i++ )
 		{
-			res[2] += ((Math.pow((i-res[0]),2)) * px[i]);
-			res[3] += ((Math.pow((i-res[1]),2)) * py[i]);
+			double vx = i-res[0];
+			res[2] += vx*vx * px[i];
 		}
-
+		res[1] = res[0];
+		res[3] = res[2];
 		return res;
 	}
 
@@ -72,7 +72,19 @@ import ij.plugin.frame.*;
 import ij.measure.*;
 import java.io.*;
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 import javax.swing.ImageIcon;
+import net.imglib2.appose.ShmImg;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 
 
 
@@ -99,6 +111,22 @@ public class GetCortex implements PlugIn
     private String[] models = {"cortex/mouse", "cortex/general", "other_model"};
     private String custom_dir = ""; // if model custom is custom_model, path to it
     private boolean standardize = false; // standardize image before cnn for some models
+    private boolean cache_masks = true; // reuse the networks output if already calculated
+    private int queue_size = 2; // nb of images waiting between two steps of the directory pipeline
+    
+    /** \brief One image going through the directory pipeline */
+    class CortexJob
+    {
+    	String inname;
+    	ImagePlus img = null;
+    	ShmImg< UnsignedByteType > input = null;
+    	ImagePlus mask = null;
+    	
+    	CortexJob( String name )
+    	{
+    		inname = name;
+    	}
+    }
     
 
 	/** \brief Dialog window 
@@ -135,6 +163,7 @@ public class GetCortex implements PlugIn
         gd.addChoice( "Choose model:", models, models[0] );
     	gd.addDirectoryField( "other_model_path:", custom_dir );
 	    gd.addCheckbox( "standardize", standardize );
+	    gd.addCheckbox( "cache_masks", cache_masks );
 		//gd.addDirectoryField("model_path:", modeldir);
         if ( !ask_directory )
         {
@@ -161,6 +190,7 @@ public class GetCortex implements PlugIn
          model_name = gd.getNextChoice();
          custom_dir = gd.getNextString();
  		standardize = gd.getNextBoolean();
+ 		cache_masks = gd.getNextBoolean();
          //modeldir = gd.getNextString();
          if ( ask_directory )
         	 dir = gd.getNextString();	
@@ -198,30 +228,12 @@ public class GetCortex implements PlugIn
 	}
 
 
-	// find current radius
-	public float[] getAnglePosition( float cx, float cy, float radius, double ang, FloatPolygon fp, ImagePlus img )
+	/** \brief Find current radius: position of the local maxima of the profile vals (n points) close to the contour along the ray at angle ang. 
+	 * exit is the distance from the center at which the ray leaves the contour. Fill res with its x, y */
+	public void getAnglePosition( float cx, float cy, float radius, double ang, double exit, double[] vals, int n, float[] res )
 	{
-		float[] res = new float[2];
-		res[0] = (float) 0.0;
-		res[1] = (float) 0.0;
-		Line myline = new Line(cx, cy, cx+radius*Math.cos(ang), cy+radius*Math.sin(ang));
-		myline.setStrokeWidth(30);  // prev 30
-		img.setRoi(myline);
-		double[] vals = myline.getPixels();
-
-		int xcur;
-		int ycur;
-
-		// detect position of the border (segmentation from the network)
-		int i = 0;
-		xcur = (int) ((float) cx + (float) (radius*Math.cos(ang) * i/vals.length));	
-		ycur = (int) ((float) cy + (float) (radius*Math.sin(ang) * i/vals.length));
-		while ( fp.contains(xcur, ycur ))
-		{
-			i++;
-			xcur = (int) ((float) cx + (float) (radius*Math.cos(ang) * i/vals.length));	
-			ycur = (int) ((float) cy + (float) (radius*Math.sin(ang) * i/vals.length));
-		}
+		// position of the border (segmentation from the network)
+		int i = RayPolygon.exitIndex( exit, radius, n );
 
 		// found the border, look for local maxima whithin reach
 		int mpos = i;
@@ -229,7 +241,7 @@ public class GetCortex implements PlugIn
 		int deb = i-size;
 		if ( deb<0) deb = 0;
 		int end = i+size;
-		if (end >vals.length) end = vals.length;
+		if (end >n) end = n;
 		double max = 0;
 		for ( int j=deb; j<end; j++ )
 		{
@@ -240,9 +252,8 @@ public class GetCortex implements PlugIn
 			}
 		}	
 
-		res[0] = (float) cx + (float) (radius*Math.cos(ang) * mpos/vals.length);	
-		res[1] = (float) cy + (float) (radius*Math.sin(ang) * mpos/vals.length);	
-		return res;
+		res[0] = (float) cx + (float) (radius*Math.cos(ang) * mpos/n);	
+		res[1] = (float) cy + (float) (radius*Math.sin(ang) * mpos/n);
 	}
 
 	/** \brief Smooth the radii with local mean and get list of points from it */
@@ -334,7 +345,10 @@ public class GetCortex implements PlugIn
 		}
 		util.close(dupbin);
 
-		IJ.run(bin, "Size...", "width="+imp.getWidth()+" height="+imp.getHeight()+" depth="+(imp.getNSlices())+" average interpolation=Bilinear");
+		// contours are traced on the mask and only their points are scaled to the image size, 
+		// instead of upsampling the whole mask stack
+		double wratio = ((double) imp.getWidth()) / bin.getWidth();
+		double hratio = ((double) imp.getHeight()) / bin.getHeight();
 		IJ.setRawThreshold(bin, 1, 255, null);
 		Prefs.blackBackground = true;
 		if ( bin.isInvertedLut() )
@@ -348,10 +362,12 @@ public class GetCortex implements PlugIn
 			IJ.run(bin, "Invert", "stack");
 		}
 		IJ.run(bin, "Convert to Mask", "method=Default background=Light black");
-		IJ.run(bin, "Analyze Particles...", "size=100-Infinity clear include add stack");
+		// minimal size of 100 pixels in the image
+		IJ.run(bin, "Analyze Particles...", "size="+(100.0/(wratio*hratio))+"-Infinity clear include add stack");
 		util.keepRois(0, bin);
 		IJ.run("Select None");
 		util.close(bin);
+		util.rescaleRois(rm, imp, wratio, hratio);
                 
         if (!visible || ask_directory) imp.hide();	
         }
@@ -413,6 +429,7 @@ public class GetCortex implements PlugIn
             ImagePlus impcrop = new ImagePlus("cropped", cropstack);               
             //ImagePlus unet = net.runUnet(impcrop, dir+inname, nnet, modeldir, 800, visible);
             RunUNet runet = new RunUNet( "cortex_detector.py" );
+            runet.setCache( cache_masks );
             ImagePlus unet = runet.runUnet( impcrop, model_path, 8, standardize, visible, debug );
             if ( visible ) unet.show();
                 
@@ -512,6 +529,7 @@ public class GetCortex implements PlugIn
                             
             //ImagePlus unet = net.runUnet(impcrop, dir+inname, nnet, modeldir, 800, visible);
             RunUNet runet = new RunUNet( "cortex_detector.py" );
+            runet.setCache( cache_masks );
             ImagePlus unet = runet.runUnet( impcrop, model_path, 8, standardize, visible, debug );
             if ( visible ) unet.show();
                 
@@ -595,54 +613,70 @@ public class GetCortex implements PlugIn
                     util.close(vert);
 
                     IJ.showStatus("Refining Rois...");
-                    // Get cortex contours
-                    FloatPolygon[] smoothcortex = new FloatPolygon[rm.getCount()];
-                    int[] zpos = new int[rm.getCount()];
-                    for ( int i = 0; i < rm.getCount(); i++ )
+                    // Get cortex contours: read the Rois once, then refine all slices in parallel
+                    final int nrois = rm.getCount();
+                    final FloatPolygon[] smoothcortex = new FloatPolygon[nrois];
+                    final FloatPolygon[] contours = new FloatPolygon[nrois];
+                    final float[][] centers = new float[nrois][3];
+                    int[] zpos = new int[nrois];
+                    for ( int i = 0; i < nrois; i++ )
                     {
-                            IJ.showStatus("Refining Rois... "+i+"/"+rm.getCount());
-                            Roi cur = rm.getRoi(i);
-                            dimp.setSlice( cur.getPosition() );
+                            Roi cur = (Roi) rm.getRoi(i).clone();
+                            cur.setImage(dimp);
                             zpos[i] = cur.getPosition();
-                            dimp.setRoi(cur);
-                            cur = dimp.getRoi();
-
-                            // find contour+local maxima position at each angle
-                            int nang = 360; //200	
-                            double ang = 0;
-                            double dang = 2*Math.PI/nang;
-                            float[] xpts = new float[nang];
-                            float[] ypts = new float[nang];
-                            float rad = (float) (cur.getFeretsDiameter()*0.7);
+                            contours[i] = cur.getFloatPolygon();
                             double[] cent = cur.getContourCentroid();
-                            float cx = (float) cent[0];
-                            float cy = (float) cent[1];
-                            for (int j=0; j<nang; j++)
-                            {	
-                                    ang = ang + dang;
-                                    float[] res = getAnglePosition(cx, cy, rad, ang, cur.getFloatPolygon(), dimp);
-                                    xpts[j] = res[0];
-                                    ypts[j] = res[1];
-                            }
-
-                            float[] rads = getRadiusInside(xpts, ypts, cx, cy);
-                            ang = 0;
-                            for (int j=0; j<nang; j++)
-                            {	
-                                    ang = ang + dang;
-                                    float[] res = smoothRadius(cx, cy, rad, ang, rads, j);
-                                    xpts[j] = res[0];
-                                    ypts[j] = res[1];
-                            }
-
-                            smoothcortex[i] = new FloatPolygon(xpts, ypts);
-                        
+                            centers[i][0] = (float) cent[0];
+                            centers[i][1] = (float) cent[1];
+                            centers[i][2] = (float) (cur.getFeretsDiameter()*0.7);
                     }
+                    final ImageStack stack = dimp.getStack();
+                    IntStream slices = IntStream.range( 0, nrois );
+                    if ( !stack.isVirtual() )
+                    	slices = slices.parallel();
+                    slices.forEach( i -> smoothcortex[i] = refineContour( stack.getProcessor(zpos[i]), contours[i], centers[i][0], centers[i][1], centers[i][2] ) );
                     util.close(dimp);
                     createRois(smoothcortex, zpos);
 	}
 
 
+	/** \brief Refine one cortex contour fp on its slice ip: move each point to the closest local maxima along rays from the center (cx, cy) of length rad, and smooth.
+	 * Thread safe, doesn't change the image nor the RoiManager */
+	public FloatPolygon refineContour( ImageProcessor ip, FloatPolygon fp, float cx, float cy, float rad )
+	{
+		// find contour+local maxima position at each angle
+		int nang = 360; //200	
+		double ang = 0;
+		double dang = 2*Math.PI/nang;
+		float[] xpts = new float[nang];
+		float[] ypts = new float[nang];
+		double[] angles = RadialSampler.angles(nang);
+		RadialSampler rays = new RadialSampler( cx, cy, rad, angles, 30 );
+		double[] exits = RayPolygon.exitDistances( fp, cx, cy, angles );
+		double[] vals = new double[ rays.maxLength() ];
+		float[] res = new float[2];
+		for (int j=0; j<nang; j++)
+		{	
+			ang = ang + dang;
+			int n = rays.sample( ip, j, vals );
+			getAnglePosition(cx, cy, rad, ang, exits[j], vals, n, res);
+			xpts[j] = res[0];
+			ypts[j] = res[1];
+		}
+
+		float[] rads = getRadiusInside(xpts, ypts, cx, cy);
+		ang = 0;
+		for (int j=0; j<nang; j++)
+		{	
+			ang = ang + dang;
+			res = smoothRadius(cx, cy, rad, ang, rads, j);
+			xpts[j] = res[0];
+			ypts[j] = res[1];
+		}
+
+		return new FloatPolygon(xpts, ypts);
+	}
+
 	/** \brief Treat one image: find cortex and save it as Rois 
 	 *
 	 * param inname image file name
@@ -670,6 +704,7 @@ public class GetCortex implements PlugIn
                 	if ( with_unet )
                 	{
                 		RunUNet runet = new RunUNet("cortex_detector.py");
+                		runet.setCache( cache_masks );
                 		unet = runet.runUnet( imp, model_path, 8, standardize, visible, debug );
                 	}
                 	else
@@ -689,6 +724,12 @@ public class GetCortex implements PlugIn
                     }*/
                 }
                 
+		refineAndSave( inname );
+	}
+	
+	/** \brief Smooth, refine the current cortex Rois and save them */
+	public void refineAndSave( String inname )
+	{
         // smooth a little and finer match to cortex
 		refineCortex();
 
@@ -705,6 +746,168 @@ public class GetCortex implements PlugIn
 		}
 	}
     
+	/** \brief Segment all the images of the directory in a pipeline:
+	 * images are opened and resized by a thread pool, the networks run on their own thread,
+	 * and the contours are extracted, refined and saved on this thread.
+	 * Bounded queues between the steps limit the number of images in memory.
+	 */
+	public void pipelineDirectory( List<String> names )
+	{
+		final int nopen = Math.max( 1, Math.min( queue_size, Runtime.getRuntime().availableProcessors()/2 ) );
+		final ExecutorService openers = Executors.newFixedThreadPool( nopen );
+		final BlockingQueue< Future< CortexJob > > opened = new ArrayBlockingQueue<>( queue_size );
+		final BlockingQueue< CortexJob > segmented = new ArrayBlockingQueue<>( queue_size );
+		final CortexJob last = new CortexJob( null );
+		final RunUNet runet = new RunUNet( "cortex_detector.py" );
+		runet.setCache( cache_masks );
+		// a failed image is logged by the inference step, it must not block the pipeline with a dialog
+		runet.setRethrow( true );
+
+		// 1: open and resize the images, blocked when enough are waiting
+		final Future< CortexJob > done = CompletableFuture.completedFuture( last );
+		Thread feeder = new Thread( () -> 
+		{
+			try
+			{
+				for ( String inname : names )
+				{
+					opened.put( openers.submit( () -> 
+					{
+						CortexJob job = new CortexJob( inname );
+						job.img = IJ.openImage( dir+inname );
+						if ( job.img != null )
+						{
+							util.reOrder( job.img );
+							job.input = runet.prepareInput( job.img, 256 );
+						}
+						return job;
+					} ) );
+				}
+			}
+			catch ( InterruptedException e ) 
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				// always tell the next step that there is nothing more
+				openers.shutdown();
+				putLast( opened, done );
+			}
+		} );
+
+		// 2: run the networks, one image after the other
+		Thread inference = new Thread( () ->
+		{
+			try
+			{
+				for ( int i = 0; ; i++ )
+				{
+					CortexJob job;
+					try
+					{
+						job = opened.take().get();
+					}
+					catch ( ExecutionException e )
+					{
+						IJ.log( "Could not open "+names.get(i)+": "+e.getCause() );
+						continue;
+					}
+					if ( job == last )
+						break;
+					if ( job.input != null )
+					{
+						// a failed image is logged and skipped, the others are still segmented
+						try
+						{
+							job.mask = runet.runUnet( job.input, model_path, 8, standardize, debug );
+						}
+						catch ( RuntimeException | OutOfMemoryError e )
+						{
+							IJ.log( "Segmentation failed for "+job.inname+": "+e );
+							job.mask = null;
+						}
+						job.input = null;
+					}
+					segmented.put( job );
+				}
+			}
+			catch ( InterruptedException e ) 
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				putLast( segmented, last );
+			}
+		} );
+		
+		feeder.start();
+		inference.start();
+
+		// 3: get the contours, refine and save them
+		try
+		{
+			CortexJob job = segmented.take();
+			while ( job != last )
+			{
+				IJ.log("Doing "+dir+job.inname);
+				if ( job.img == null )
+				{
+					IJ.log( "Could not open "+job.inname );
+				}
+				else if ( job.mask == null )
+				{
+					IJ.log( "Segmentation failed for "+job.inname );
+					util.close( job.img );
+				}
+				else
+				{
+					try
+					{
+						rm.reset();
+						imp = job.img;
+						cal = util.initCalibration(imp);
+						rm.runCommand(imp,"Deselect");
+						util.unselectImage(imp);
+						getCortexFromUnet( job.mask );
+						refineAndSave( job.inname );
+					}
+					catch ( RuntimeException e )
+					{
+						IJ.log( "Could not get the cortex of "+job.inname+": "+e );
+						if ( job.img != null ) util.close( job.img );
+					}
+				}
+				job = null;
+				System.gc(); // garbage collector
+				job = segmented.take();
+			}
+		}
+		catch ( InterruptedException e ) 
+		{
+			feeder.interrupt();
+			inference.interrupt();
+			openers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** \brief Put the end marker in the queue, so that the next step never waits forever */
+	private static < T > void putLast( BlockingQueue< T > queue, T last )
+	{
+		try
+		{
+			queue.put( last );
+		}
+		catch ( InterruptedException e )
+		{
+			// cancelled: nobody waits anymore, don't block
+			queue.offer( last );
+			Thread.currentThread().interrupt();
+		}
+	}
+    
 	/** Get the path to the model local download or path */
 	public void getModelPath()
 	{
@@ -765,7 +968,7 @@ public class GetCortex implements PlugIn
         	File thedir = new File(dir); 
         	File[] fileList = thedir.listFiles(); 
 
-
+        	List<String> names = new ArrayList<String>();
         	for (File fily : fileList) 
         	{
         		if ( fily.isFile() )
@@ -777,9 +980,23 @@ public class GetCortex implements PlugIn
         				String extension = inname.substring(j);
         				if ( extension.equals(".tif") | extension.equals(".TIF") | extension.equals(".png") | extension.equals(".jpg") | extension.equals(".JPG") )
         				{
-        					getCortexImage( inname, arg.equals("cortex") );
+        					names.add( inname );
         				}                       
         			}
+        		}
+        	}
+        	
+        	if ( arg.equals("cortex") && !locate )
+        	{
+        		// overlap reading, networks and refinement of the successive images
+        		IJ.run("Close All", "");
+        		pipelineDirectory( names );
+        	}
+        	else
+        	{
+        		for ( String inname : names )
+        		{
+        			getCortexImage( inname, arg.equals("cortex") );
         			System.gc(); // garbage collector
         		}
         	}
@@ -790,6 +1007,8 @@ public class GetCortex implements PlugIn
         	getCortexImage( inname, arg.equals("cortex") );
         }
 
+        // stop the python services used for the networks
+        ServicePool.closeAll();
 	}
 
 
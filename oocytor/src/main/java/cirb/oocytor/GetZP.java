@@ -66,10 +66,15 @@ import ij.io.LogStream;
 import ij.plugin.*;
 import ij.plugin.frame.*;
 import ij.measure.*;
+import ij.process.FloatPolygon;
+import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import java.awt.Color;
 import java.awt.Font;
 import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
 import javax.swing.ImageIcon;
 
 public class GetZP implements PlugIn 
@@ -94,6 +99,8 @@ public class GetZP implements PlugIn
 	private boolean debug = false; // add debug prints
 	private boolean save_rois = true; // save rois to zip file
 	private boolean standardize = false; // standardize imgs for some cnn
+	private boolean cache_masks = true; // reuse the networks output if already calculated
+	private int batch_slices = 30; // nb of slices from several images to send together to the network
 
 	/** Initialisation of an image */
 	public void openResetImage(String imgname) 
@@ -151,21 +158,11 @@ public class GetZP implements PlugIn
 		return res;
 	}
 
-	/** \brief At given angle, find inner and outer limits of the positive area */
-	public float[] findFirstLast(float cx, float cy, float radius, double ang, ImagePlus img) 
+	/** \brief At given angle, find inner and outer limits of the positive area, from the intensity profile vals (n points) along the ray. Fill res with first x, y and last x, y */
+	public void findFirstLast(float cx, float cy, float radius, double ang, double[] vals, int n, float[] res) 
 	{
-		float[] res = new float[4];
-		res[0] = (float) 0.0;
-		res[1] = (float) 0.0;
-		res[2] = (float) 0.0;
-		res[3] = (float) 0.0;
-		Line myline = new Line(cx, cy, cx + radius * Math.cos(ang), cy + radius * Math.sin(ang));
-		myline.setStrokeWidth(15);  // prev 30
-		img.setRoi(myline);
-		double[] vals = myline.getPixels();
-
 		// find last
-		int i = vals.length;
+		int i = n;
 		while ((vals[i - 1] <= 200) && (i > 1))
 			i--;
 		if (i <= 2)
@@ -175,17 +172,17 @@ public class GetZP implements PlugIn
 
 		// find first
 		int j = 0;
-		while ((vals[j + 1] <= 200) && (j < (vals.length - 2)))
+		while ((vals[j + 1] <= 200) && (j < (n - 2)))
 			j++;
-		if (j >= (vals.length - 4))
+		if (j >= (n - 4))
 			j = -10000;
 		else
 			j -= 1;
 
-		res[0] = (float) cx + (float) (radius * Math.cos(ang) * j / vals.length);
-		res[1] = (float) cy + (float) (radius * Math.sin(ang) * j / vals.length);
-		res[2] = (float) cx + (float) (radius * Math.cos(ang) * i / vals.length);
-		res[3] = (float) cy + (float) (radius * Math.sin(ang) * i / vals.length);
+		res[0] = (float) cx + (float) (radius * Math.cos(ang) * j / n);
+		res[1] = (float) cy + (float) (radius * Math.sin(ang) * j / n);
+		res[2] = (float) cx + (float) (radius * Math.cos(ang) * i / n);
+		res[3] = (float) cy + (float) (radius * Math.sin(ang) * i / n);
 
 		// is out or against image limits
 		if (res[0] >= imp.getWidth() * 0.99 || res[0] <= 3)
@@ -196,8 +193,6 @@ public class GetZP implements PlugIn
 			res[2] = -10000;
 		if (res[3] >= imp.getHeight() * 0.99 || res[3] <= 3)
 			res[3] = -10000;
-
-		return res;
 	}
 
 	/** \brief Keep only bigger ROI from the binary image */
@@ -236,10 +231,10 @@ public class GetZP implements PlugIn
 		rm.reset();
 	}
 
-	/** \brief At each slice, calculate the iner and outer Rois from the binary image */
-	public void getRoisSlice(int slice, ImagePlus bin, double wratio, double hratio, float rad) {
-		imp.setSlice(slice);
-		bin.setSlice(slice);
+	/** \brief Calculate the inner and outer contours of one slice from its binary image ip.
+	 * Headless and thread safe: doesn't change the images nor the RoiManager.
+	 * Returns {inner, outer} polygons at the image scale, null if not asked by get_contours (0: inner only, 1: outer only, 2: both) */
+	public FloatPolygon[] sliceContours(ImageProcessor ip, RadialSampler rays, double wratio, double hratio, float rad, int get_contours) {
 
 		int nang = 400;
 		double ang = 0;
@@ -248,8 +243,8 @@ public class GetZP implements PlugIn
 		float[] fypts = new float[nang];
 		float[] lxpts = new float[nang];
 		float[] lypts = new float[nang];
-		float cx = (float) (bin.getWidth() / 2.0);
-		float cy = (float) (bin.getHeight() / 2.0);
+		float cx = (float) (ip.getWidth() / 2.0);
+		float cy = (float) (ip.getHeight() / 2.0);
 		int nfpos = 0;
 		int nlpos = 0;
 
@@ -257,13 +252,16 @@ public class GetZP implements PlugIn
 		// get local radii. Put negative values when missing
 		float[] radtabf = new float[nang];
 		float[] radtabl = new float[nang];
+		double[] vals = new double[rays.maxLength()];
+		float[] limits = new float[4];
 		for (int j = 0; j < nang; j++) {
 			ang = ang + dang;
-			float[] res = findFirstLast(cx, cy, rad, ang, bin);
-			fxpts[j] = res[0];
-			fypts[j] = res[1];
-			lxpts[j] = res[2];
-			lypts[j] = res[3];
+			int n = rays.sample(ip, j, vals);
+			findFirstLast(cx, cy, rad, ang, vals, n, limits);
+			fxpts[j] = limits[0];
+			fypts[j] = limits[1];
+			lxpts[j] = limits[2];
+			lypts[j] = limits[3];
 			if (fxpts[j] > 0 && fypts[j] > 0)
 				radtabf[j] = (float) Math.sqrt((double) ((fxpts[j] - cx) * (fxpts[j] - cx) + (fypts[j] - cy) * (fypts[j] - cy)));
 			else
@@ -274,13 +272,6 @@ public class GetZP implements PlugIn
 				radtabl[j] = -100;
 		}
 
-		/// choose if get both or only one contours
-		int get_contours = 2;
-		if (contours.equals("Outer only"))
-			get_contours = 1;
-		if (contours.equals("Inner only"))
-			get_contours = 0;
-
 		/// replace negative (missing) values by local mean
 		int size = 30;
 		ang = 0;
@@ -289,14 +280,14 @@ public class GetZP implements PlugIn
 			if ( (get_contours != 1) && (radtabf[j] <= 0) ) 
 			{
 				float mrad = util.meanCircularRadius(radtabf, j, size);
-				if (mrad < 0) mrad = Math.max(bin.getWidth(), bin.getHeight());
+				if (mrad < 0) mrad = Math.max(ip.getWidth(), ip.getHeight());
 				radtabf[j] = mrad;
 				fxpts[j] = cx + (float) (mrad * Math.cos(ang));
 				fypts[j] = cy + (float) (mrad * Math.sin(ang));
 			}
 			if ((get_contours != 0 ) && (radtabl[j] <= 0)) {
 				float mrad = util.meanCircularRadius(radtabl, j, size);
-				if (mrad < 0) mrad = Math.max(bin.getWidth(), bin.getHeight());
+				if (mrad < 0) mrad = Math.max(ip.getWidth(), ip.getHeight());
 				radtabl[j] = mrad;
 				lxpts[j] = cx + (float) (mrad * Math.cos(ang));
 				lypts[j] = cy + (float) (mrad * Math.sin(ang));
@@ -355,25 +346,13 @@ public class GetZP implements PlugIn
 		}
 		res = null;
 
-		/// Construct and add the two Roi
+		/// Construct the two contours
+		FloatPolygon[] polys = new FloatPolygon[2];
 		if (get_contours != 1)
-		{
-			Roi froi = new PolygonRoi(fxpts, fypts, Roi.POLYGON);
-			froi.setImage(imp);
-			froi.setPosition(slice);
-			imp.setRoi(froi);
-			froi.setName("zp_" + (slice) + "-in");
-			rm.addRoi(froi);
-		}
+			polys[0] = new FloatPolygon(fxpts, fypts);
 		if (get_contours != 0)
-		{
-			Roi lroi = new PolygonRoi(lxpts, lypts, Roi.POLYGON);
-			lroi.setImage(imp);
-			lroi.setPosition(slice);
-			imp.setRoi(lroi);
-			lroi.setName("zp_" + (slice) + "-out");
-			rm.addRoi(lroi);
-		}
+			polys[1] = new FloatPolygon(lxpts, lypts);
+		return polys;
 	}
 
 	public void getZPFromUnet(ImagePlus bin) 
@@ -384,6 +363,8 @@ public class GetZP implements PlugIn
 		double wratio = ((double) (imp.getWidth())) / bin.getWidth();
 		double hratio = ((double) (imp.getHeight())) / bin.getHeight();
 		float rad = (float) (Math.min(bin.getWidth(), bin.getHeight()));
+		// the rays are the same at all slices: calculate their points only once
+		RadialSampler rays = new RadialSampler((float) (bin.getWidth() / 2.0), (float) (bin.getHeight() / 2.0), rad, RadialSampler.angles(400), 15);
 
 		// clean small areas
 		cleanSmallRois(bin);
@@ -393,13 +374,46 @@ public class GetZP implements PlugIn
 		}
 		//bin.show();
 	    //new WaitForUserDialog("test").show();
-		for (int i = 1; i <= imp.getNSlices(); i++) {
-			IJ.showStatus("Refine ZP Rois... " + i + "/" + imp.getNSlices());
-			getRoisSlice(i, bin, wratio, hratio, rad);
+		/// choose if get both or only one contours
+		int get_contours = 2;
+		if (contours.equals("Outer only"))
+			get_contours = 1;
+		if (contours.equals("Inner only"))
+			get_contours = 0;
+		final int which = get_contours;
+
+		// slices are independent: calculate their contours in parallel
+		IJ.showStatus("Refine ZP Rois... ");
+		final int nslices = imp.getNSlices();
+		final ImageStack stack = bin.getStack();
+		final FloatPolygon[][] polys = new FloatPolygon[nslices][];
+		IntStream slices = IntStream.range(0, nslices);
+		if (!stack.isVirtual())
+			slices = slices.parallel();
+		slices.forEach(i -> polys[i] = sliceContours(stack.getProcessor(i + 1), rays, wratio, hratio, rad, which));
+
+		// add the Rois in slice order
+		for (int i = 1; i <= nslices; i++) {
+			imp.setSlice(i);
+			if (polys[i - 1][0] != null)
+				addZPRoi(polys[i - 1][0], i, "-in");
+			if (polys[i - 1][1] != null)
+				addZPRoi(polys[i - 1][1], i, "-out");
 		}
 		util.close(bin);
 	}
 
+	/** \brief Add the contour of the slice to the RoiManager */
+	private void addZPRoi(FloatPolygon poly, int slice, String suffix)
+	{
+		Roi roi = new PolygonRoi(poly, Roi.POLYGON);
+		roi.setImage(imp);
+		roi.setPosition(slice);
+		imp.setRoi(roi);
+		roi.setName("zp_" + (slice) + suffix);
+		rm.addRoi(roi);
+	}
+
 
     /** Find approximate location and size of ZP to run netork only locally */
     public ImagePlus localizeAndRunZP(String inname)
@@ -458,6 +472,7 @@ public class GetZP implements PlugIn
         // Segment the cropped images
         ImagePlus impcrop = new ImagePlus("cropped", cropstack);               
         RunUNet runet = new RunUNet( "cortex_detector.py" );
+        runet.setCache( cache_masks );
         ImagePlus unet = runet.runUnet( impcrop, model_path, nfeatures, standardize, visible, debug );
        
         if ( visible ) unet.show();
@@ -538,6 +553,7 @@ public class GetZP implements PlugIn
 			{
 				// run neural network for segmentation
 				RunUNet runet = new RunUNet( "cortex_detector.py" );
+				runet.setCache( cache_masks );
 				unet = runet.runUnet( imp, model_path, nfeatures, standardize, visible, debug );
 			}
 			else
@@ -547,6 +563,12 @@ public class GetZP implements PlugIn
         		unet = IJ.openImage( maskname );
 			}
 		}
+		refineAndSave( inname, unet );
+	}
+	
+	/** \brief Get the ZP Rois of the current image from the network output and save them */
+	public void refineAndSave( String inname, ImagePlus unet )
+	{
 		// extract contours from the binary image, smooth a little
 		IJ.showStatus("Refine ZP Rois...");
 		getZPFromUnet(unet);
@@ -591,6 +613,7 @@ public class GetZP implements PlugIn
 		 gd.addChoice( "Choose model:", models, models[0] );
 		gd.addDirectoryField( "other_model_path:", custom_dir );
 		gd.addCheckbox("standardize", standardize);
+		gd.addCheckbox("cache_masks", cache_masks);
         
 		//gd.addDirectoryField("model_path:", modeldir);
 	      if ( !ask_directory )
@@ -616,6 +639,7 @@ public class GetZP implements PlugIn
 		custom_dir = gd.getNextString();
          //modeldir = gd.getNextString();
 		standardize = gd.getNextBoolean();
+		cache_masks = gd.getNextBoolean();
          if ( ask_directory )
         	 dir = gd.getNextString();	
          else
@@ -694,6 +718,30 @@ public class GetZP implements PlugIn
 		File thedir = new File(dir);
 		File[] fileList = thedir.listFiles();
 		
+		// without locate, small images are segmented together by batch
+		Map<String, ImagePlus> waiting = new HashMap<String, ImagePlus>();
+		UNetBatcher batcher = null;
+		if ( arg.equals("zp") && !locate )
+		{
+			batcher = new UNetBatcher( "cortex_detector.py", model_path, nfeatures, standardize, debug, batch_slices, 
+					( name, unet ) -> 
+					{
+						imp = waiting.remove( name );
+						if ( unet == null )
+						{
+							IJ.log( "Segmentation failed for "+name );
+							util.close( imp );
+							return;
+						}
+						rm.reset();
+						cal = util.initCalibration(imp);
+						refineAndSave( name, unet );
+					} );
+			batcher.setCache( cache_masks );
+			// a single image sent alone is a 2D input, normalised row by row
+			batcher.setRowNormalisedSingles( true );
+		}
+		
 		for (File fily : fileList) {
 			if (fily.isFile()) {
 				String inname = fily.getName();
@@ -701,12 +749,24 @@ public class GetZP implements PlugIn
 				if (j > 0) {
 					String extension = inname.substring(j);
 					if (extension.equals(".tif") | extension.equals(".TIF") | extension.equals(".png") | extension.equals(".jpg") | extension.equals(".JPG")) {
-						getZP(inname, arg.equals("zp"));
+						if ( batcher != null )
+						{
+							IJ.log("Doing " + dir + inname);
+							rm.reset();
+							openResetImage( dir + inname );
+							util.reOrder(imp);
+							waiting.put( inname, imp );
+							batcher.add( inname, imp );
+						}
+						else
+							getZP(inname, arg.equals("zp"));
 					}
 					System.gc(); // garbage collector
 				}
 			}
 		}
+		if ( batcher != null )
+			batcher.flush();
 		}
 		else
 		{
@@ -714,5 +774,7 @@ public class GetZP implements PlugIn
         	getZP( inname, arg.equals("zp") );
 		}
 		
+		// stop the python services used for the networks
+		ServicePool.closeAll();
 	}
 }
@@ -45,6 +45,60 @@ import ij.measure.ResultsTable;
  */
 public class LBP
 {
+	/** neighbour offsets, in the order of the code bits (theta 0 to 315 by 45, most significant bit first) */
+	static final int[] DX = {1, 1, 0, -1, -1, -1, 0, 1};
+	static final int[] DY = {0, 1, 1, 1, 0, -1, -1, -1};
+
+	/** \brief lookup tables from the 8 bits code to the uniform (59 bins), rotation invariant (36 bins) and uniform rotation invariant (10 bins) patterns */
+	static final int[] UNIFORM = new int[256];
+	static final int[] ROTINV = new int[256];
+	static final int[] RIU2 = new int[256];
+	static final int NUNIFORM = 59;
+	static final int NROTINV = 36;
+	static final int NRIU2 = 10;
+
+	static
+	{
+		int nu = 0;
+		int[] minrot = new int[256];
+		boolean[] seen = new boolean[256];
+		for ( int code = 0; code < 256; code++ )
+		{
+			int min = code;
+			int rot = code;
+			for ( int k = 1; k < 8; k++ )
+			{
+				rot = ((rot << 1) | (rot >> 7)) & 0xff;
+				min = Math.min(min, rot);
+			}
+			minrot[code] = min;
+			seen[min] = true;
+			if ( transitions(code) <= 2 )
+			{
+				UNIFORM[code] = nu++;
+				RIU2[code] = Integer.bitCount(code);
+			}
+			else
+			{
+				UNIFORM[code] = NUNIFORM-1;
+				RIU2[code] = NRIU2-1;
+			}
+		}
+		// index rotation invariant patterns by increasing minimal code
+		int[] rank = new int[256];
+		int nr = 0;
+		for ( int code = 0; code < 256; code++ )
+			if ( seen[code] ) rank[code] = nr++;
+		for ( int code = 0; code < 256; code++ )
+			ROTINV[code] = rank[minrot[code]];
+	}
+
+	/** \brief number of 0/1 changes along the circular 8 bits code */
+	static int transitions( int code )
+	{
+		int rot = ((code << 1) | (code >> 7)) & 0xff;
+		return Integer.bitCount(code ^ rot);
+	}
 
 	public void calcLBP(ImageProcessor ip, Roi roi, ResultsTable rt, String name )
 	{
@@ -56,46 +110,251 @@ public class LBP
 		rt.addValue(name+"LBPVar", var[0]);
 		rt.addValue(name+"LBPSkewness", var[1]);
 		rt.addValue(name+"LBPKurtosis", var[2]);
+
+		addHist(rt, name+"LBPUniform_", foldHist(hist, UNIFORM, NUNIFORM));
+		addHist(rt, name+"LBPRotInv_", foldHist(hist, ROTINV, NROTINV));
+		addHist(rt, name+"LBPRiu2_", foldHist(hist, RIU2, NRIU2));
+	}
+
+	/** \brief regroup the 256 codes histogram with a lookup table */
+	public double[] foldHist( double[] hist, int[] lut, int nbins )
+	{
+		double[] res = new double[nbins];
+		for ( int code = 0; code < hist.length; code++ )
+			res[lut[code]] += hist[code];
+		return res;
+	}
+
+	void addHist( ResultsTable rt, String name, double[] hist )
+	{
+		for ( int b = 0; b < hist.length; b++ )
+			rt.addValue(name+b, hist[b]);
 	}
 
 	public double[] buildLBPHist(ImageProcessor ip, Roi roi)
 	{
-		double[] hist = new double[256];
-		int i, j;
+		int[] counts = new int[256];
 		int pixelCount = 0;
-		int res = 0;
+		int w = ip.getWidth();
+		int h = ip.getHeight();
+		// direct access to the 8-bit pixels, with the row stride folded in the neighbour offsets
+		byte[] pixels = (ip instanceof ByteProcessor) ? (byte[]) ip.getPixels() : null;
+		int[] off = new int[8];
+		for ( int k = 0; k < 8; k++ )
+			off[k] = DY[k]*w + DX[k];
 
-		Rectangle rec = roi.getBounds();
-		// fill matrix
-		for ( int x = rec.x; x< (rec.x+rec.width); x++ )
+		RoiMask mask = RoiMask.get(roi, roi.getPosition());
+		// fill histogram, only with the pixels inside the roi
+		for ( int y = mask.firstRow(); y < mask.endRow(); y++ )
 		{
-			for ( int y = rec.y; y < (rec.y+rec.height); y++ )
+			int[] runs = mask.runs(y);
+			boolean inner = (pixels != null) && (y >= 1) && (y < h-1);
+			for ( int r = 0; r < runs.length; r += 2 )
 			{
-				if ( roi.contains(x,y) )
+				int start = runs[r];
+				int end = runs[r+1];
+				pixelCount += end - start;
+				int xs = inner ? Math.min(Math.max(start, 1), end) : end;
+				int xe = inner ? Math.max(xs, Math.min(end, w-1)) : end;
+				for ( int x = start; x < xs; x++ )
+					counts[ code(ip, x, y) ]++;
+				int pos = y*w + xs;
+				for ( int x = xs; x < xe; x++, pos++ )
 				{
-					pixelCount++;
-					res = 0;
-					for (double theta=0; theta <360; theta = theta+45)
+					int c = pixels[pos]&0xff;
+					int res = 0;
+					for ( int k = 0; k < 8; k++ )
 					{
-						int dx = (int) Math.round(Math.cos(theta/180*Math.PI));
-						int dy = (int) Math.round(Math.sin(theta/180*Math.PI));
-						
-						res *= 2;
-						if ( ip.getPixel(x,y) < ip.getPixel(x+dx, y+dy) )
-							res = res + 1;
+						res <<= 1;
+						if ( c < (pixels[pos+off[k]]&0xff) )
+							res |= 1;
 					}
-					//System.out.println("res "+res);
-					hist[res] ++;
+					counts[res]++;
 				}
+				for ( int x = xe; x < end; x++ )
+					counts[ code(ip, x, y) ]++;
 			}
 		}
 
+		double[] hist = new double[256];
 		for (int k = 0; k<256; k++)
-			hist[k] /= pixelCount;
+			hist[k] = (double) counts[k] / pixelCount;
 
 		return hist;
 	}
+
+	/** \brief code of one pixel, read with bounds checking (0 outside the image) */
+	int code( ImageProcessor ip, int x, int y )
+	{
+		int c = ip.getPixel(x, y);
+		int res = 0;
+		for ( int k = 0; k < 8; k++ )
+		{
+			res <<= 1;
+			if ( c < ip.getPixel(x+DX[k], y+DY[k]) )
+				res |= 1;
+		}
+		return res;
+	}
 	
+	/** \brief circular neighbourhoods (P neighbours at radius R) of the multi-scale LBP */
+	static final int[][] SCALES = { {8, 1}, {16, 2}, {24, 3} };
+
+	/** \brief P points on a circle of radius R, with their bilinear interpolation weights precomputed */
+	static class Circle
+	{
+		final int np;
+		final int rad;
+		final int[] fx, fy;
+		final double[] w00, w10, w01, w11;
+
+		Circle( int np, int rad )
+		{
+			this.np = np;
+			this.rad = rad;
+			fx = new int[np];
+			fy = new int[np];
+			w00 = new double[np];
+			w10 = new double[np];
+			w01 = new double[np];
+			w11 = new double[np];
+			for ( int p = 0; p < np; p++ )
+			{
+				double dx = rad*Math.cos(2*Math.PI*p/np);
+				double dy = -rad*Math.sin(2*Math.PI*p/np);
+				// snap the points falling on the pixel grid, so that they are read exactly
+				if ( Math.abs(dx-Math.rint(dx)) < 1e-6 ) dx = Math.rint(dx);
+				if ( Math.abs(dy-Math.rint(dy)) < 1e-6 ) dy = Math.rint(dy);
+				fx[p] = (int) Math.floor(dx);
+				fy[p] = (int) Math.floor(dy);
+				double tx = dx - fx[p];
+				double ty = dy - fy[p];
+				w00[p] = (1-tx)*(1-ty);
+				w10[p] = tx*(1-ty);
+				w01[p] = (1-tx)*ty;
+				w11[p] = tx*ty;
+			}
+		}
+
+		/** \brief code of the pixel at pos, the neighbours (offsets in the pixels array) being all inside the image */
+		int code( byte[] pixels, int pos, int w, int[] off )
+		{
+			int c = pixels[pos]&0xff;
+			int code = 0;
+			for ( int p = 0; p < np; p++ )
+			{
+				int q = pos + off[p];
+				double v = w00[p]*(pixels[q]&0xff) + w10[p]*(pixels[q+1]&0xff)
+					+ w01[p]*(pixels[q+w]&0xff) + w11[p]*(pixels[q+w+1]&0xff);
+				code <<= 1;
+				if ( c < v )
+					code |= 1;
+			}
+			return code;
+		}
+
+		/** \brief code of the pixel (x,y), read with bounds checking (0 outside the image) */
+		int code( ImageProcessor ip, int x, int y )
+		{
+			int c = ip.getPixel(x, y);
+			int code = 0;
+			for ( int p = 0; p < np; p++ )
+			{
+				int qx = x + fx[p];
+				int qy = y + fy[p];
+				double v = w00[p]*ip.getPixel(qx, qy) + w10[p]*ip.getPixel(qx+1, qy)
+					+ w01[p]*ip.getPixel(qx, qy+1) + w11[p]*ip.getPixel(qx+1, qy+1);
+				code <<= 1;
+				if ( c < v )
+					code |= 1;
+			}
+			return code;
+		}
+
+		/** \brief rotation invariant uniform bin of a code: number of neighbours above the centre if uniform, P+1 otherwise */
+		int riu2( int code )
+		{
+			int rot = ((code << 1) | (code >>> (np-1))) & ((1 << np) - 1);
+			if ( Integer.bitCount(code ^ rot) <= 2 )
+				return Integer.bitCount(code);
+			return np+1;
+		}
+	}
+
+	static final Circle[] CIRCLES = new Circle[SCALES.length];
+	static
+	{
+		for ( int s = 0; s < SCALES.length; s++ )
+			CIRCLES[s] = new Circle(SCALES[s][0], SCALES[s][1]);
+	}
+
+	/** \brief Multi-scale circular LBP: riu2 histograms for each (P,R) of SCALES, as <name>LBPP<P>R<R>_<bin> columns */
+	public void calcMultiScaleLBP(ImageProcessor ip, Roi roi, ResultsTable rt, String name )
+	{
+		double[][] hists = buildMultiScaleHists(ip, roi);
+		for ( int s = 0; s < CIRCLES.length; s++ )
+			addHist(rt, name+"LBPP"+CIRCLES[s].np+"R"+CIRCLES[s].rad+"_", hists[s]);
+	}
+
+	/** \brief riu2 histograms of all the scales, filled in one pass over the roi pixels.
+	 * A neighbour sets its bit when it is strictly above the centre, as in buildLBPHist */
+	public double[][] buildMultiScaleHists(ImageProcessor ip, Roi roi)
+	{
+		int ns = CIRCLES.length;
+		int[][] counts = new int[ns][];
+		int[][] offs = new int[ns][];
+		int margin = 0;
+		int w = ip.getWidth();
+		int h = ip.getHeight();
+		for ( int s = 0; s < ns; s++ )
+		{
+			Circle circ = CIRCLES[s];
+			counts[s] = new int[circ.np+2];
+			offs[s] = new int[circ.np];
+			for ( int p = 0; p < circ.np; p++ )
+				offs[s][p] = circ.fy[p]*w + circ.fx[p];
+			margin = Math.max(margin, circ.rad+1);
+		}
+		byte[] pixels = (ip instanceof ByteProcessor) ? (byte[]) ip.getPixels() : null;
+		int pixelCount = 0;
+
+		RoiMask mask = RoiMask.get(roi, roi.getPosition());
+		for ( int y = mask.firstRow(); y < mask.endRow(); y++ )
+		{
+			int[] runs = mask.runs(y);
+			boolean inner = (pixels != null) && (y >= margin) && (y < h-margin);
+			for ( int r = 0; r < runs.length; r += 2 )
+			{
+				int start = runs[r];
+				int end = runs[r+1];
+				pixelCount += end - start;
+				int xs = inner ? Math.min(Math.max(start, margin), end) : end;
+				int xe = inner ? Math.max(xs, Math.min(end, w-margin)) : end;
+				for ( int x = start; x < xs; x++ )
+					for ( int s = 0; s < ns; s++ )
+						counts[s][ CIRCLES[s].riu2(CIRCLES[s].code(ip, x, y)) ]++;
+				for ( int x = xs; x < xe; x++ )
+				{
+					int pos = y*w + x;
+					for ( int s = 0; s < ns; s++ )
+						counts[s][ CIRCLES[s].riu2(CIRCLES[s].code(pixels, pos, w, offs[s])) ]++;
+				}
+				for ( int x = xe; x < end; x++ )
+					for ( int s = 0; s < ns; s++ )
+						counts[s][ CIRCLES[s].riu2(CIRCLES[s].code(ip, x, y)) ]++;
+			}
+		}
+
+		double[][] hists = new double[ns][];
+		for ( int s = 0; s < ns; s++ )
+		{
+			hists[s] = new double[counts[s].length];
+			for ( int b = 0; b < counts[s].length; b++ )
+				hists[s][b] = (double) counts[s][b] / pixelCount;
+		}
+		return hists;
+	}
+
 	public double hmean( double[] arr )
 	{
 		double res = 0;
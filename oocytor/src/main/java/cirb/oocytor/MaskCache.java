@@ -0,0 +1,304 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+/**
+ * \brief On-disk cache of the network masks (in .local/share/oocytor/cache)
+ *
+ * A mask is stored under the hash of everything that changes it: the resized input pixels, the script (its content),
+ * the model folders (with a checksum of their variables files), nfeat and standardize. 
+ * Parameters used after the networks (threshold, smoothing...) can then be changed without running python again.
+ * The cache is limited to MAX_SIZE_MB, the least recently used masks being deleted first.
+ *
+ * @author Gaelle Letort
+ */
+public class MaskCache
+{
+	private static final int MAGIC = 0x4f6f4d6b; // "OoMk"
+	private static final long MAX_SIZE_MB = 2048;
+	// checksum of the python scripts content, by name
+	private static final Map< String, String > scripts = new HashMap<>();
+	// checksum of the model variables, by folder (with its last modification)
+	private static final Map< String, String > checksums = new HashMap<>();
+
+	/** \brief Hash identifying the mask of this input with these networks 
+	 * 
+	 * @param dims dimensions of the input sent to python
+	 * @param planes input pixels, in the order they are sent 
+	 * @return the key, null if it could not be calculated
+	 */
+	public static String key( String script, List< String > model_paths, int nfeat, boolean standardize, long[] dims, List< ? extends RandomAccessibleInterval< UnsignedByteType > > planes )
+	{
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+			StringBuilder params = new StringBuilder( script ).append( "=" ).append( scriptChecksum( script ) );
+			for ( String model : model_paths )
+				params.append( ";" ).append( model ).append( "=" ).append( variablesChecksum( model ) );
+			params.append( ";nfeat=" ).append( nfeat ).append( ";standardize=" ).append( standardize ).append( ";dims=" );
+			// a single slice is the same input, sent as 2D alone or as 3D in a batch
+			int ndims = dims.length;
+			while ( ndims > 2 && dims[ ndims-1 ] == 1 )
+				ndims--;
+			for ( int d = 0; d < ndims; d++ )
+				params.append( dims[ d ] ).append( "," );
+			md.update( params.toString().getBytes( StandardCharsets.UTF_8 ) );
+
+			final byte[] buffer = new byte[ 1 << 16 ];
+			for ( RandomAccessibleInterval< UnsignedByteType > plane : planes )
+			{
+				final Cursor< UnsignedByteType > cursor = Views.flatIterable( plane ).cursor();
+				int n = 0;
+				while ( cursor.hasNext() )
+				{
+					buffer[ n++ ] = (byte) cursor.next().get();
+					if ( n == buffer.length )
+					{
+						md.update( buffer, 0, n );
+						n = 0;
+					}
+				}
+				md.update( buffer, 0, n );
+			}
+			return toHex( md.digest() );
+		}
+		catch ( NoSuchAlgorithmException | IOException e )
+		{
+			IJ.log( "Mask cache disabled: "+e );
+			return null;
+		}
+	}
+
+	/** \brief Cached mask for this key, null if not cached yet */
+	public static ImagePlus load( String key )
+	{
+		if ( key == null )
+			return null;
+		File file = cacheFile( key );
+		if ( !file.exists() )
+			return null;
+		// recently used, deleted last
+		file.setLastModified( System.currentTimeMillis() );
+		try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ); FileChannel channel = raf.getChannel() )
+		{
+			MappedByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			if ( buf.getInt() != MAGIC )
+				return null;
+			final int width = buf.getInt();
+			final int height = buf.getInt();
+			final int nchannels = buf.getInt();
+			final int nslices = buf.getInt();
+			final int nframes = buf.getInt();
+			ImageStack stack = new ImageStack( width, height );
+			for ( int z = 0; z < nchannels*nslices*nframes; z++ )
+			{
+				byte[] pixels = new byte[ width*height ];
+				buf.get( pixels );
+				stack.addSlice( "", pixels );
+			}
+			ImagePlus mask = new ImagePlus( "mask", stack );
+			mask.setDimensions( nchannels, nslices, nframes );
+			return mask;
+		}
+		catch ( Exception e )
+		{
+			// truncated or unreadable file, run the networks again
+			IJ.log( "Could not read cached mask "+file+": "+e );
+			return null;
+		}
+	}
+
+	/** \brief Save the 8-bit mask under this key */
+	public static void save( String key, ImagePlus mask )
+	{
+		if ( key == null || mask == null )
+			return;
+		File file = cacheFile( key );
+		File tmp = null;
+		try
+		{
+			// write a temporary file then rename it, so a cached file is always complete
+			tmp = File.createTempFile( key, ".tmp", file.getParentFile() );
+			try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) ) )
+			{
+				out.writeInt( MAGIC );
+				out.writeInt( mask.getWidth() );
+				out.writeInt( mask.getHeight() );
+				out.writeInt( mask.getNChannels() );
+				out.writeInt( mask.getNSlices() );
+				out.writeInt( mask.getNFrames() );
+				ImageStack stack = mask.getStack();
+				for ( int z = 1; z <= stack.getSize(); z++ )
+					out.write( (byte[]) stack.getPixels( z ) );
+			}
+			try
+			{
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+			catch ( AtomicMoveNotSupportedException e )
+			{
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Could not cache the mask: "+e );
+		}
+		finally
+		{
+			// never leave a partial file
+			if ( tmp != null )
+				tmp.delete();
+		}
+		prune( file.getParentFile() );
+	}
+
+	/** \brief Delete the least recently used masks (oldest modification) while the cache is bigger than MAX_SIZE_MB */
+	private static synchronized void prune( File dir )
+	{
+		File[] files = dir.listFiles( ( d, name ) -> name.endsWith( ".mask" ) );
+		if ( files == null )
+			return;
+		long total = 0;
+		for ( File f : files )
+			total += f.length();
+		final long max = MAX_SIZE_MB * 1024 * 1024;
+		if ( total <= max )
+			return;
+		Arrays.sort( files, Comparator.comparingLong( File::lastModified ) );
+		for ( File f : files )
+		{
+			if ( total <= max )
+				break;
+			long len = f.length();
+			if ( f.delete() )
+				total -= len;
+		}
+	}
+
+	/** \brief Checksum of the python script resource, so that a modified script does not use the old masks */
+	private static synchronized String scriptChecksum( String script ) throws NoSuchAlgorithmException
+	{
+		String sum = scripts.get( script );
+		if ( sum != null )
+			return sum;
+		MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+		URL url = MaskCache.class.getResource( script );
+		String content = ( url != null ) ? Utils.getScript( url ) : "";
+		sum = toHex( md.digest( content.getBytes( StandardCharsets.UTF_8 ) ) );
+		scripts.put( script, sum );
+		return sum;
+	}
+
+	/** \brief Checksum of all the files in the variables folder of the model, calculated again only if they changed */
+	private static synchronized String variablesChecksum( String model_path ) throws IOException, NoSuchAlgorithmException
+	{
+		Path variables = Paths.get( model_path, "variables" );
+		List< Path > files;
+		try ( Stream< Path > list = Files.list( variables ) )
+		{
+			files = list.filter( Files::isRegularFile ).sorted().collect( Collectors.toList() );
+		}
+		// files are read again only if one of them changed
+		StringBuilder stamp = new StringBuilder( model_path );
+		for ( Path file : files )
+			stamp.append( ";" ).append( file.getFileName() ).append( ":" ).append( file.toFile().length() ).append( ":" ).append( file.toFile().lastModified() );
+		String sum = checksums.get( stamp.toString() );
+		if ( sum != null )
+			return sum;
+
+		MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+		final byte[] buffer = new byte[ 1 << 16 ];
+		for ( Path file : files )
+		{
+			md.update( file.getFileName().toString().getBytes( StandardCharsets.UTF_8 ) );
+			try ( InputStream in = new FileInputStream( file.toFile() ) )
+			{
+				int n;
+				while ( ( n = in.read( buffer ) ) > 0 )
+					md.update( buffer, 0, n );
+			}
+		}
+		sum = toHex( md.digest() );
+		checksums.put( stamp.toString(), sum );
+		return sum;
+	}
+
+	private static File cacheFile( String key )
+	{
+		return new File( Utils.createLocalDirectory( "oocytor/cache" ), key + ".mask" );
+	}
+
+	private static String toHex( byte[] hash )
+	{
+		StringBuilder hex = new StringBuilder();
+		for ( byte b : hash )
+			hex.append( String.format( "%02x", b ) );
+		return hex.toString();
+	}
+}
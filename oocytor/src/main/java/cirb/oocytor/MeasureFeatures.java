@@ -40,6 +40,15 @@ import ij.plugin.frame.*;
 import ij.measure.*;
 import java.io.*;
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.IntStream;
 import javax.swing.ImageIcon;
 
 
@@ -53,19 +62,9 @@ import javax.swing.ImageIcon;
 */
 public class MeasureFeatures implements PlugIn 
 {
-	ImagePlus imp;
-	Calibration cal;
-	RoiManager rm;
 	Utils util;
 	String dir;
 	String resdir = "";
-        String purname;
-        String inname;
-
-        // Handles black edge by looking at Rois of erased areas
-	Roi[] erased;
-	boolean erasing;
-	Roi outside;
 		
 	// Which actions to do
 	boolean oocyte = true;
@@ -78,6 +77,7 @@ public class MeasureFeatures implements PlugIn
 	boolean spatial = true;
 	boolean zpstruc = true;
 	boolean nucleus_position = true; // Measure relative nucleus poition (to the center, to the edge, normalised)
+	boolean lisa = false; // Local Moran maps over the whole cortex
 	
 	// parameters
 	double scalexy = 0.5; // one pixel in um
@@ -85,7 +85,13 @@ public class MeasureFeatures implements PlugIn
 	double dtime = 0.05; // time between frames in h
 	double sizexy = 0.25; // size of image in pixel for texture
 	double pivsize = 0.227; // size of image in pixel for piv
+	String glcm_distances = ""; // extra GLCM offsets in pixels (texture), e.g. "1,2,4"; empty: only the 1 pixel, 0 degree GLCM
+	String glcm_angles = ""; // extra GLCM directions in degrees (texture), e.g. "0,45,90,135"
+	int glcm_levels = 256; // nb of gray levels of the GLCM: 256 keeps the pixel values
+	String glcm_binning = "min-max"; // "min-max", "percentile": range of the roi values binned in the gray levels
+	String lisa_sizes = "5,20"; // kernel sizes of the local Moran maps, in pixels (texture scale)
 	int maxslice = -1; // don't do all slices
+	int nmovies = 1; // number of movies measured at the same time
         
     int precision = 5; // number of digits
 
@@ -106,8 +112,14 @@ public class MeasureFeatures implements PlugIn
 		gd.addNumericField("time_tonebd", timeoff, 4);
 		gd.addNumericField("dt", dtime, 4);
 		gd.addNumericField("texture_size_xy", sizexy, 4);
+		gd.addStringField("texture_glcm_distances", glcm_distances);
+		gd.addStringField("texture_glcm_angles", glcm_angles);
+		gd.addChoice("texture_glcm_levels", new String[] {"256", "64", "32", "16", "8"}, ""+glcm_levels);
+		gd.addChoice("texture_glcm_binning", new String[] {"min-max", "percentile"}, glcm_binning);
+		gd.addStringField("local_moran_sizes", lisa_sizes);
 		gd.addNumericField("piv_size_xy", pivsize, 4);
 		gd.addNumericField("max_slice", maxslice, 1);
+		gd.addNumericField("parallel_movies", nmovies, 0);
 		gd.addMessage("---------------------------------------------------------- ");
 		gd.addMessage("Measure oocyte features", boldy);
 		gd.addCheckbox("oocyte_feature", true);
@@ -120,6 +132,7 @@ public class MeasureFeatures implements PlugIn
 		gd.addCheckbox("spatial", true);
 		gd.addCheckbox("zp_structure", true);
 		gd.addCheckbox( "nucleus_position", nucleus_position );
+		gd.addCheckbox( "local_moran_maps", lisa );
 		
                 //gd.setBackground(new Color(75,75,91));
                 //gd.setForeground(new Color(255,255,255));
@@ -136,8 +149,14 @@ public class MeasureFeatures implements PlugIn
 		timeoff = gd.getNextNumber();
 		dtime = gd.getNextNumber();
 		sizexy = gd.getNextNumber();
+		glcm_distances = gd.getNextString();
+		glcm_angles = gd.getNextString();
+		glcm_levels = Integer.parseInt( gd.getNextChoice() );
+		glcm_binning = gd.getNextChoice();
+		lisa_sizes = gd.getNextString();
 		pivsize = gd.getNextNumber();
 		maxslice = (int) gd.getNextNumber();
+		nmovies = (int) gd.getNextNumber();
 		
                 oocyte = gd.getNextBoolean();
 		zp = gd.getNextBoolean();
@@ -149,6 +168,14 @@ public class MeasureFeatures implements PlugIn
 		spatial = gd.getNextBoolean();
 		zpstruc = gd.getNextBoolean();
 		nucleus_position = gd.getNextBoolean();
+		lisa = gd.getNextBoolean();
+
+		// other directions would be measured as the closest one, with a wrong name
+		if ( !GLCMTexture.validAngles( parseInts(glcm_angles) ) )
+		{
+			IJ.error( "GLCM angles can only be 0, 45, 90 or 135 degrees, got "+glcm_angles );
+			return false;
+		}
 
                 dir = IJ.getDirectory("Choose images directory:");	
 		return true;
@@ -156,214 +183,246 @@ public class MeasureFeatures implements PlugIn
 
 	
 	/** \brief Shape and intensity inside oocyte */
-	public void measureOocyte()
+	public void measureOocyte( MovieData mv )
 	{
-		openImageRois(true, true, -1, true);	
-		int nrois = rm.getCount();
+		ImagePlus imp = mv.imp;
+		Roi outside = mv.outside();
+		Roi[] cortex = mv.cortex;
+		int nrois = cortex.length;
 		ResultsTable myrt = new ResultsTable();
                 myrt.setPrecision​(precision);
-		
-		// calculate mean motion
-		for ( int i=0; i < nrois; i++ )
+
+		// frames are independent: measure them in parallel
+		ResultsTable[] rows = new ResultsTable[nrois];
+		IntStream.range( 0, nrois ).parallel().forEach( i ->
 		{
-                    rm.select(i);
-                    Roi cur = rm.getRoi(i);
-                    int slice = cur.getPosition();
+                    int slice = cortex[i].getPosition();
+                    ImagePlus frame = frame( imp, slice );
+                    ResultsTable row = new ResultsTable();
+                    row.incrementCounter();
 
                     // translate if is on the side
-                    Roi cort = (Roi) cur.clone();
-                    int goOut = util.goingOutRoi(imp, cort);
-                    if ( goOut < 0 ) cort = util.translateRoi(imp, cort, goOut );
-                    imp.setSlice(slice);
-                    imp.setRoi(cort);	
-                    ImageStatistics mystat = imp.getAllStatistics();
-
-                    myrt.incrementCounter();
-                    myrt.addValue("Time", timeoff+(slice-1)*dtime);
-                    myrt.addValue("OoArea", mystat.area*scalexy*scalexy);
-                    myrt.addValue("OoMajorAxisLength", mystat.major*scalexy);
-                    myrt.addValue("OoMinorAxisLength", mystat.minor*scalexy);
-                    myrt.addValue("OoEllAspectRatio", mystat.major/mystat.minor);
-                    myrt.addValue("OoFeretDiam", cort.getFeretsDiameter()*scalexy);
+                    Roi cort = (Roi) cortex[i].clone();
+                    int goOut = util.goingOutRoi(frame, cort);
+                    if ( goOut < 0 ) cort = util.translateRoi(frame, cort, goOut );
+                    cort.setImage(frame);
+                    frame.setRoi(cort);	
+                    ImageStatistics mystat = frame.getAllStatistics();
+
+                    row.addValue("Time", timeoff+(slice-1)*dtime);
+                    row.addValue("OoArea", mystat.area*scalexy*scalexy);
+                    row.addValue("OoMajorAxisLength", mystat.major*scalexy);
+                    row.addValue("OoMinorAxisLength", mystat.minor*scalexy);
+                    row.addValue("OoEllAspectRatio", mystat.major/mystat.minor);
+                    row.addValue("OoFeretDiam", cort.getFeretsDiameter()*scalexy);
                     double perim = cort.getLength();
-                    myrt.addValue("OoPerimeter", perim*scalexy);
-                    myrt.addValue("OoCircularity", 4*Math.PI*mystat.area/(perim*perim));
-                    myrt.addValue("OoRoundness", 4*mystat.area/(Math.PI*mystat.major*mystat.major));
+                    row.addValue("OoPerimeter", perim*scalexy);
+                    row.addValue("OoCircularity", 4*Math.PI*mystat.area/(perim*perim));
+                    row.addValue("OoRoundness", 4*mystat.area/(Math.PI*mystat.major*mystat.major));
                     Polygon hull = cort.getConvexHull();
                     double ahull = util.polyarea(hull);
-                    myrt.addValue("OoConvexity", mystat.area/ahull);
+                    row.addValue("OoConvexity", mystat.area/ahull);
                     RoiCurvature rc = new RoiCurvature(util);
                     double meanRad = perim/(2*Math.PI);
-                    rc.getCurvature(cort, myrt, scalexy, "Oo", meanRad);
+                    rc.getCurvature(frame, cort, row, scalexy, "Oo", meanRad);
                     //LocoEfa loco = new LocoEfa();
-                    //loco.getLocoEFA( cort, myrt );
+                    //loco.getLocoEFA( cort, row );
 
                     //normalise intensities to outside mean
-                    imp.setRoi(outside);
-                    ImageStatistics exstat = imp.getStatistics();
+                    frame.setRoi( frameRoi(outside, frame) );
+                    ImageStatistics exstat = frame.getStatistics();
 
                     // get clean Roi
-                    rm.runCommand(imp,"Deselect");
                     Roi cleaned; 
-                    if ( erasing ) cleaned = util.getCleanedRoi( rm, imp, cur, erased, slice );
-                    else cleaned = cur;
-                    imp.setSlice(slice);
-                    cleaned.setImage(imp);
-                    imp.setRoi(cleaned);
-                    mystat = imp.getAllStatistics();
-
-                    myrt.addValue("OoKurtosis", mystat.kurtosis);
-                    myrt.addValue("OoNormMean", mystat.mean/exstat.mean);
-                    myrt.addValue("OoNormStd", mystat.stdDev/exstat.mean);
-                    myrt.addValue("OoNormCoefVar", mystat.stdDev/mystat.mean);
-                    myrt.addResults();
-               }
-		myrt.save(resdir+File.separator+purname+"_oocyteFeatures.csv");
-        	imp.changes = false;
-		imp.close();
+                    if ( mv.erasing() ) cleaned = util.getCleanedRoi( cortex[i], mv.erased, slice );
+                    else cleaned = cortex[i];
+                    if ( cleaned == null )
+                    {
+                        skipErased( mv, slice, "oocyte intensities" );
+                        rows[i] = row;
+                        return;
+                    }
+                    frame.setRoi( frameRoi(cleaned, frame) );
+                    mystat = frame.getAllStatistics();
+
+                    row.addValue("OoKurtosis", mystat.kurtosis);
+                    row.addValue("OoNormMean", mystat.mean/exstat.mean);
+                    row.addValue("OoNormStd", mystat.stdDev/exstat.mean);
+                    row.addValue("OoNormCoefVar", mystat.stdDev/mystat.mean);
+                    rows[i] = row;
+		} );
+		appendRows( myrt, rows );
+		myrt.addResults();
+		myrt.save(resdir+File.separator+mv.purname+"_oocyteFeatures.csv");
+		IJ.run(imp, "Select None", "");
+	}
+
+	/** \brief One frame of the movie in its own ImagePlus, so that frames can be measured in parallel (own Roi, slice and calibration).
+	 * For stacks in memory, the processor shares the pixels of the movie: they must only be read, duplicate the processor to modify it */
+	public ImagePlus frame( ImagePlus imp, int slice )
+	{
+		ImageStack stack = imp.getStack();
+		ImageProcessor ip;
+		// virtual stacks read the frames from the disk, one at a time
+		synchronized ( stack )
+		{
+			ip = stack.getProcessor( Math.max(slice, 1) );
+		}
+		ImagePlus res = new ImagePlus( imp.getTitle(), ip );
+		res.setCalibration( imp.getCalibration() );
+		return res;
+	}
+
+	/** \brief Copy of the Roi attached to the frame, shared Rois are never modified by the frame measures */
+	public Roi frameRoi( Roi roi, ImagePlus frame )
+	{
+		Roi res = (Roi) roi.clone();
+		res.setImage( frame );
+		return res;
+	}
+
+	/** \brief Log a measure not done because the Roi of the frame is fully erased (its values are NaN) */
+	public void skipErased( MovieData mv, int slice, String measure )
+	{
+		IJ.log( "Nothing left to measure "+measure+" in frame "+slice+" of "+mv.purname+" (fully erased), skipped" );
+	}
+
+	/** \brief Add the one-line results of each frame, in time order */
+	public void appendRows( ResultsTable myrt, ResultsTable[] rows )
+	{
+		// measures skipped in some frames are NaN, not 0
+		myrt.setNaNEmptyCells(true);
+		for ( ResultsTable row : rows )
+		{
+			myrt.incrementCounter();
+			for ( String col : row.getHeadings() )
+			{
+				if ( row.columnExists(col) )
+					myrt.addValue( col, row.getValue(col, 0) );
+			}
+		}
 	}
 
 
 
 
 	/** \brief Measure ZP size, shape, intensities */
-	public void measureZPFeatures()
+	public void measureZPFeatures( MovieData mv )
 	{
 		ResultsTable myrt = new ResultsTable();
                 myrt.setPrecision​(precision);
 		
-		openImageRois(true, true, -1, true);
-                Roi[] cortex = rm.getRoisAsArray();
+		ImagePlus imp = mv.imp;
+		Roi outside = mv.outside();
+                Roi[] cortex = mv.cortex;
                 int nrois = cortex.length;
-		rm.reset();
-		IJ.run(imp, "Select None", "");
-		// get ZP Rois and load cortex Roi in RoiManager
-		rm.runCommand("Open", dir+"contours"+File.separator+purname+"_ZP.zip");
-		Roi[] zps = rm.getRoisAsArray();
-		rm.runCommand(imp,"Deselect");
-		rm.reset();
+		Roi[] zps = mv.zps;
 		IJ.run(imp, "Select None", "");
 
-		double iarea, ell, oarea;	
-		// Measure features in time
-		for ( int i = 0; i < nrois; i++ )
+		// Measure features in time, frames are independent
+		ResultsTable[] rows = new ResultsTable[nrois];
+		IntStream.range( 0, nrois ).parallel().forEach( i ->
 		{
-			Roi cur = cortex[i];
-			int slice = cur.getPosition();
-			imp.setSlice(slice);
-			myrt.incrementCounter();
-			myrt.addValue("Time", timeoff+(slice-1)*dtime);
+			int slice = cortex[i].getPosition();
+			ImagePlus frame = frame( imp, slice );
+			ResultsTable row = new ResultsTable();
+			row.incrementCounter();
+			row.addValue("Time", timeoff+(slice-1)*dtime);
 			
 			// get inside outside zp Roi
-			Roi trcur = (Roi) cur.clone();
-			Roi in = zps[i*2];
-			Roi out = zps[i*2+1];
-			
-			Roi zpin = (Roi) in.clone();
-			Roi zpout = (Roi) out.clone();
+			Roi trcur = (Roi) cortex[i].clone();
+			Roi zpin = (Roi) zps[i*2].clone();
+			Roi zpout = (Roi) zps[i*2+1].clone();
 			// translate if is on the side
-			int goOut = util.goingOutRoi(imp, zpout);
+			int goOut = util.goingOutRoi(frame, zpout);
 			if ( goOut < 0 )
 			{
-				zpin = util.translateRoi(imp, zpin, goOut );
-				zpout = util.translateRoi(imp, zpout, goOut );
-				trcur = util.translateRoi(imp, trcur, goOut );
+				zpin = util.translateRoi(frame, zpin, goOut );
+				zpout = util.translateRoi(frame, zpout, goOut );
+				trcur = util.translateRoi(frame, trcur, goOut );
 			}
 
 			// measure in ZP
-			imp.setRoi(zpin);
-			iarea = (zpin.getStatistics()).area;
-			ell = (zpin.getStatistics()).major/(zpin.getStatistics()).minor;
-			myrt.addValue("ZPPerimIn", zpin.getLength()*scalexy);
+			zpin.setImage(frame);
+			frame.setRoi(zpin);
+			double iarea = (zpin.getStatistics()).area;
+			double ell = (zpin.getStatistics()).major/(zpin.getStatistics()).minor;
+			row.addValue("ZPPerimIn", zpin.getLength()*scalexy);
                         double meanRadius = zpin.getLength()/(2*Math.PI);
-			myrt.addValue("ZPEllAspectRatioIn", ell);
+			row.addValue("ZPEllAspectRatioIn", ell);
 			RoiCurvature rc = new RoiCurvature(util);
-                        rc.getCurvature(zpin, myrt, scalexy, "ZPIn", meanRadius);
+                        rc.getCurvature(frame, zpin, row, scalexy, "ZPIn", meanRadius);
 			
 			// get outside zp Roi
-			imp.setRoi(zpout);
-			oarea = zpout.getStatistics().area;
+			zpout.setImage(frame);
+			frame.setRoi(zpout);
+			double oarea = zpout.getStatistics().area;
 			ell = (zpout.getStatistics()).major/(zpout.getStatistics()).minor;
 			double orad = Math.sqrt(oarea/Math.PI);
-			myrt.addValue("ZPPerimOut", zpout.getLength()*scalexy);
-			myrt.addValue("ZPEllAspectRatioOut", ell);
+			row.addValue("ZPPerimOut", zpout.getLength()*scalexy);
+			row.addValue("ZPEllAspectRatioOut", ell);
                         meanRadius = zpout.getLength()/(2*Math.PI);	
-			rc.getCurvature(zpout, myrt, scalexy, "ZPOut", meanRadius);
+			rc.getCurvature(frame, zpout, row, scalexy, "ZPOut", meanRadius);
                         
 			// thickness measures
 			double[] thick = util.roisThickness( zpin, zpout );
-			myrt.addValue("ZPArea", (oarea-iarea)*scalexy*scalexy);
-			myrt.addValue("ZPThicknessMean", thick[2]*scalexy);
-			myrt.addValue("ZPThicknessStd", thick[3]*scalexy);
-                        myrt.addValue("ZPThicknessCoefVar", thick[3]/thick[2]);
-			myrt.addValue("ZPThicknessMin", thick[0]*scalexy);
-			myrt.addValue("ZPThicknessMax", thick[1]*scalexy);
+			row.addValue("ZPArea", (oarea-iarea)*scalexy*scalexy);
+			row.addValue("ZPThicknessMean", thick[2]*scalexy);
+			row.addValue("ZPThicknessStd", thick[3]*scalexy);
+                        row.addValue("ZPThicknessCoefVar", thick[3]/thick[2]);
+			row.addValue("ZPThicknessMin", thick[0]*scalexy);
+			row.addValue("ZPThicknessMax", thick[1]*scalexy);
 		
-			// ZP together
-			rm.reset();
-			rm.addRoi(in);
-			rm.addRoi(out);
-			IJ.run(imp, "Select None", "");
-			rm.runCommand(imp,"Deselect");
-			rm.runCommand(imp,"XOR");
-			Roi tzp = imp.getRoi();
-                        // pb in the tzp contours, take whole image
-                        if ( tzp == null ) tzp = new Roi(0, 0, imp.getWidth(), imp.getHeight());
-
 			// intensities
-			imp.setRoi(outside);
-			ImageStatistics is = outside.getStatistics();
+			Roi out = frameRoi(outside, frame);
+			frame.setRoi(out);
+			ImageStatistics is = out.getStatistics();
 			double omean = is.mean;
                         
+			// ZP together
+			Roi tzp = RoiBoolean.ring( zps[i*2], zps[i*2+1] );
+                        // pb in the tzp contours, take whole image
+                        if ( tzp == null ) tzp = new Roi(0, 0, imp.getWidth(), imp.getHeight());
 			// get clean Roi
-			rm.runCommand(imp,"Deselect");
-			//System.out.println("so far so good 2");
-			Roi cleaned; 
-			if ( erasing )
+			Roi cleaned = tzp;
+			if ( mv.erasing() ) cleaned = util.getCleanedRoi( tzp, mv.erased, slice );
+			if ( cleaned != null )
 			{
-				cleaned = util.getCleanedRoi( rm, imp, tzp, erased, slice );
+				cleaned = frameRoi(cleaned, frame);
+				frame.setRoi(cleaned);
+				is = cleaned.getStatistics();
+				row.addValue("ZPKurtosis", is.kurtosis);
+				row.addValue("ZPNormMean", is.mean/omean);
+				row.addValue("ZPNormStd", is.stdDev/omean);
+				row.addValue("ZPNormCoefVar", is.stdDev/is.mean);
 			}
-			else cleaned = tzp;
-			imp.setSlice(slice);
-			cleaned.setImage(imp);
-			imp.setRoi(cleaned);
-			
-			is = cleaned.getStatistics();
-			myrt.addValue("ZPKurtosis", is.kurtosis);
-			myrt.addValue("ZPNormMean", is.mean/omean);
-			myrt.addValue("ZPNormStd", is.stdDev/omean);
-                        myrt.addValue("ZPNormCoefVar", is.stdDev/is.mean);
+			else skipErased( mv, slice, "ZP intensities" );
 			
+			// oocyte area is not clipped to the image
+			trcur.setImage(null);
 			double carea = (trcur.getStatistics()).area;
 			double rad = Math.sqrt(carea/Math.PI);
-			myrt.addValue("ZPOoRadiusRatio", orad/rad);
-			
-		}
+			row.addValue("ZPOoRadiusRatio", orad/rad);
+			rows[i] = row;
+		} );
 
+		appendRows( myrt, rows );
 		myrt.addResults();
-		myrt.save(resdir+File.separator+purname+"_zpFeatures.csv");
-      
-                util.close(imp);
+		myrt.save(resdir+File.separator+mv.purname+"_zpFeatures.csv");
+		IJ.run(imp, "Select None", "");
 	}
-        
+
         
 	/** \brief Measure Perivitelin space size, shape */
-	public void measurePerivFeatures()
+	public void measurePerivFeatures( MovieData mv )
 	{
 		ResultsTable myrt = new ResultsTable();
                 myrt.setPrecision​(precision);
 		
-		
-		openImageRois(true, true, -1, true);
-		Roi[] cortex = rm.getRoisAsArray();
+		ImagePlus imp = mv.imp;
+		Roi[] cortex = mv.cortex;
 		int nrois = cortex.length;
-		rm.reset();
-		IJ.run(imp, "Select None", "");
-		// get ZP Rois and load cortex Roi in RoiManager
-		rm.runCommand("Open", dir+"contours"+File.separator+purname+"_ZP.zip");
-		Roi[] zps = rm.getRoisAsArray();
-		rm.runCommand(imp,"Deselect");
-		rm.reset();
+		Roi[] zps = mv.zps;
 		IJ.run(imp, "Select None", "");
 
 		double iarea;	
@@ -412,294 +471,325 @@ public class MeasureFeatures implements PlugIn
 		}
 
 		myrt.addResults();
-		myrt.save(resdir+File.separator+purname+"_perivFeatures.csv");
-              util.close(imp);
+		myrt.save(resdir+File.separator+mv.purname+"_perivFeatures.csv");
+		IJ.run(imp, "Select None", "");
 	}
 
         // don't consider that part of oocyte can be outside image
-	public void calcShapeFluctuations()
+	public void calcShapeFluctuations( MovieData mv )
 	{
-		// open, reset
-		String imgname = dir+inname;
-		imp = IJ.openVirtual(imgname);
-        purname = inname.substring(0, inname.lastIndexOf('.'));
-		//imp = IJ.getImage();
-		util.initCalibration(imp);
-		rm.runCommand(imp,"Deselect");
-		rm.reset();
-		IJ.run(imp, "Select None", "");
-		rm.runCommand("Open", dir+"contours"+File.separator+purname+"_UnetCortex.zip");
-
 		// do by angles
 		int nang = 300;
-		double ang = 0;
-		double dang = 2*Math.PI/nang;
-		int x, y;
-		double rad = 0;
-		int nt = rm.getCount();
+		Roi[] cortex = mv.cortex;
+		double[][] rads = RayPolygon.radialProfiles( cortex, RayPolygon.anglesFromZero(nang) );
 		ResultsTable myrt = new ResultsTable();
                 myrt.setPrecision​(precision);
 		
 		// get radius
-		for (int i=0; i < nt; i++)
+		for (int i=0; i < cortex.length; i++)
 		{
-			Roi cur = rm.getRoi(i);
-			double[] cent = cur.getContourCentroid();
 			myrt.incrementCounter();
-			ang = 0;
-                            
 			for ( int a = 0; a < nang; a++ )
 			{
-				x = (int) cent[0];
-				y = (int) cent[1];
-				rad = rad/4.0;  // begins closer to previous radius
-				while ( cur.contains(x,y) )
-				{
-					x = (int) (cent[0] + rad*Math.cos(ang));
-					y = (int) (cent[1] + rad*Math.sin(ang));
-					rad = rad + 0.05;
-				}
-				myrt.addValue("Time", timeoff+(cur.getPosition()-1)*dtime);
-				myrt.addValue("Ang"+a, rad*scalexy);
-				ang = ang + dang;
+				myrt.addValue("Time", timeoff+(cortex[i].getPosition()-1)*dtime);
+				myrt.addValue("Ang"+a, rads[i][a]*scalexy);
 			}
 
 			myrt.addResults();
 		}
 
-		myrt.save(resdir+File.separator+purname+"_fluctuationResults.csv");
-
-		imp.changes = false;
-		imp.close();
+		myrt.save(resdir+File.separator+mv.purname+"_fluctuationResults.csv");
 	}
 
 
 
-	public void measureImageTexture()
+	public void measureImageTexture( MovieData mv )
 	{
-		double factxy = scalexy/sizexy;
-		openImageRois( true, true, factxy, false);
-		Roi[] cortex = rm.getRoisAsArray();
-		rm.reset();
-		rm.runCommand(imp,"Deselect");
-
-		// get tzp Roi
-		rm.runCommand("Open", dir+"contours"+File.separator+purname+"_ZP.zip");
-		rm.runCommand(imp,"Deselect");
-		util.rescaleRois(rm, imp,factxy);
-		Roi[] zps = rm.getRoisAsArray();
+		MovieData.Scaled tex = mv.texture( scalexy/sizexy );
+		ImagePlus imp = tex.imp;
+		Roi[] cortex = tex.cortex;
+		Roi[] zps = tex.zps;
+		int nrois = cortex.length;
 		IJ.run(imp, "Select None", "");
-		rm.reset();
 
-		GLCMTexture glcm = new GLCMTexture();
 		ResultsTable myrt = new ResultsTable();
                 myrt.setPrecision​(precision);
-		
-
-		IJ.run(imp, "8-bit", "");
-		MoranIndex mi = new MoranIndex();
 		int radmoran = 50;
 		
-		for ( int i=0; i < cortex.length; i++ )
+		// frames are independent: measure them in parallel, each with its own texture calculators
+		ResultsTable[] rows = new ResultsTable[nrois];
+		IntStream.range( 0, nrois ).parallel().forEach( i ->
 		{
-			IJ.showProgress(i, cortex.length );
-			// texture inside cortex
-			Roi cur = cortex[i];
-			int slice = cur.getPosition();
-			imp.setSlice(slice);
-			imp.setRoi(cur);	
-			// get clean Roi
-			rm.runCommand(imp,"Deselect");
-			Roi cleaned; 
-			if ( erasing )
-			{
-				cleaned = util.getCleanedRoi( rm, imp, cur, erased, slice );
-			}
-			else cleaned = cur;
-			imp.setSlice(slice);
-			cleaned.setImage(imp);
-			cleaned.setPosition(slice);
-			imp.setRoi(cleaned);
-			
-			myrt.incrementCounter();
-			myrt.addValue("Time", timeoff+(slice-1)*dtime);
-			ImageProcessor ip = imp.getProcessor();
-			glcm.calcTexture(ip, cleaned, myrt, "Oo");
+			int slice = cortex[i].getPosition();
+			ImagePlus frame = frame( imp, slice );
+			ImageProcessor ip = frame.getProcessor();
+			ResultsTable row = new ResultsTable();
+			row.incrementCounter();
+			row.addValue("Time", timeoff+(slice-1)*dtime);
+
+			GLCMTexture glcm = new GLCMTexture();
+			glcm.setOffsets( parseInts(glcm_distances), parseInts(glcm_angles) );
+			glcm.setQuantisation( glcm_levels, glcm_binning.equals("percentile") );
+			// get clean Roi: the shared one, so that its mask is calculated once for all the measures
+			Roi cleaned = cortex[i];
+			if ( tex.erased != null ) cleaned = util.getCleanedRoi( cortex[i], tex.erased, slice );
+			if ( cleaned != null ) glcm.calcTexture(ip, cleaned, row, "Oo");
+			else skipErased( mv, slice, "oocyte texture" );
 		
 			// create smaller ROI	
-			rm.runCommand(imp,"Deselect");
-			double[] cent = cur.getContourCentroid();
+			double[] cent = cortex[i].getContourCentroid();
 			Roi mor = new OvalRoi((cent[0]-radmoran),(cent[1]-radmoran),2*radmoran,2*radmoran);
-			imp.setRoi(mor);
-			ImageProcessor ipm = imp.getProcessor();
-			double res = mi.run(5, ipm, mor);
-			myrt.addValue("OoMoranIndexK5", res);
-			res = mi.run(20, ipm, mor);
-			myrt.addValue("OoMoranIndexK20", res);
+			frame.setRoi(mor);
+			MoranIndex mi = new MoranIndex();
+			double[] res = mi.run(new double[]{5, 20}, ip, mor);
+			row.addValue("OoMoranIndexK5", res[0]);
+			row.addValue("OoMoranIndexK20", res[1]);
 
 			// texture inside foll zone only
-			rm.reset();
-			imp.setSlice(slice);
-			imp.setRoi(zps[i*2+1]);
-			rm.runCommand(imp,"Add");
-			imp.setRoi(zps[i*2]);
-			rm.runCommand(imp,"Add");
-			rm.runCommand(imp,"Deselect");
-			rm.runCommand(imp,"XOR");
-			Roi tzp = imp.getRoi();
-			// get clean Roi
-			rm.runCommand(imp,"Deselect");
-			cleaned = null; 
-			if ( erasing )
+			Roi tzp = RoiBoolean.ring( zps[i*2], zps[i*2+1] );
+			cleaned = tzp;
+			if ( tzp != null && tex.erased != null ) cleaned = util.getCleanedRoi( tzp, tex.erased, slice );
+			if ( cleaned == null )
 			{
-				cleaned = util.getCleanedRoi( rm, imp, tzp, erased, slice );
+				skipErased( mv, slice, "ZP texture" );
+				rows[i] = row;
+				return;
 			}
-			else cleaned = tzp;
-			imp.setSlice(slice);
-			cleaned.setImage(imp);
-			cleaned.setPosition(slice);
-			imp.setRoi(cleaned);
-			IJ.run(imp, "Clear Outside", "slice");	
-			ip = imp.getProcessor();
-			glcm.calcTexture(ip, cleaned, myrt, "ZP");
-			
-			myrt.addResults();
-		}
-		myrt.save(resdir+File.separator+purname+"_textureFeatures.csv");
-        	imp.changes = false;
-		imp.close();
+			// clear outside on a copy of the slice, the texture movie is shared with the other measures
+			ImageProcessor zpip = ip.duplicate();
+			zpip.setGlobalBackgroundColor();
+			zpip.fillOutside( (Roi) cleaned.clone() );
+			glcm.calcTexture(zpip, cleaned, row, "ZP");
+			rows[i] = row;
+		} );
+		appendRows( myrt, rows );
+		myrt.addResults();
+		myrt.save(resdir+File.separator+mv.purname+"_textureFeatures.csv");
+		IJ.run(imp, "Select None", "");
 	}
 
-	public void measureImageLBP()
+	/** \brief List of integers separated by commas or spaces, empty if none */
+	public int[] parseInts( String list )
 	{
-		double factxy = scalexy/sizexy;
-		openImageRois( true, true, factxy, false);
-		// get cortex Rois
-		rm.runCommand(imp,"Deselect");
-		Roi[] cortex = rm.getRoisAsArray();
-		rm.reset();
-		
-		// get tzp Roi
-		rm.runCommand("Open", dir+"contours"+File.separator+purname+"_ZP.zip");
-		rm.runCommand(imp,"Deselect");
-		util.rescaleRois(rm, imp,factxy);
-		Roi[] zps = rm.getRoisAsArray();
-		rm.runCommand(imp,"Deselect");
-		rm.reset();
+		if ( list.trim().isEmpty() ) return new int[0];
+		String[] vals = list.trim().split("[,\\s]+");
+		int[] res = new int[vals.length];
+		for ( int i = 0; i < vals.length; i++ )
+			res[i] = Integer.parseInt( vals[i] );
+		return res;
+	}
+
+	public void measureImageLBP( MovieData mv )
+	{
+		MovieData.Scaled tex = mv.texture( scalexy/sizexy );
+		ImagePlus imp = tex.imp;
+		Roi[] cortex = tex.cortex;
+		Roi[] zps = tex.zps;
+		int nrois = cortex.length;
 
-		LBP locbp = new LBP();
 		ResultsTable myrt = new ResultsTable();
                 myrt.setPrecision​(precision);
 		
-
-		IJ.run(imp, "8-bit", "");
-		for ( int i=0; i < cortex.length; i++ )
+		// frames are independent: measure them in parallel
+		LBP locbp = new LBP();
+		ResultsTable[] rows = new ResultsTable[nrois];
+		IntStream.range( 0, nrois ).parallel().forEach( i ->
 		{
-			// texture inside cortex
-			Roi cur = cortex[i];
-			int slice = cur.getPosition();
-			imp.setSlice(slice);
-			imp.setRoi(cur);	
-			myrt.incrementCounter();
-			//myrt.addValue("Slice", slice);
-			myrt.addValue("Time", timeoff+(slice-1)*dtime);
+			int slice = cortex[i].getPosition();
+			ImagePlus frame = frame( imp, slice );
+			ImageProcessor ip = frame.getProcessor();
+			ResultsTable row = new ResultsTable();
+			row.incrementCounter();
+			//row.addValue("Slice", slice);
+			row.addValue("Time", timeoff+(slice-1)*dtime);
 			
-			// get clean Roi
-			rm.runCommand(imp,"Deselect");
-			Roi cleaned; 
-			if ( erasing )
+			// get clean Roi: the shared one, so that its mask is calculated once for all the measures
+			Roi cleaned = cortex[i];
+			if ( tex.erased != null ) cleaned = util.getCleanedRoi( cortex[i], tex.erased, slice );
+			if ( cleaned != null )
 			{
-				cleaned = util.getCleanedRoi( rm, imp, cur, erased, slice );
+				locbp.calcLBP(ip, cleaned, row, "Oo");
+				locbp.calcMultiScaleLBP(ip, cleaned, row, "Oo");
 			}
-			else cleaned = cur;
-			imp.setSlice(slice);
-			cleaned.setImage(imp);
-			cleaned.setPosition(slice);
-			imp.setRoi(cleaned);
-			ImageProcessor ip = imp.getProcessor();
-			locbp.calcLBP(ip, cleaned, myrt, "Oo");
+			else skipErased( mv, slice, "oocyte LBP" );
 
 			// texture inside foll zone only
-			rm.reset();
-			imp.setSlice(slice);
-			rm.addRoi(zps[i*2+1]);
-			rm.addRoi(zps[i*2]);
-			rm.runCommand(imp,"XOR");
-			Roi tzp = imp.getRoi();
-			imp.setRoi(tzp);
-			// get clean Roi
-			rm.runCommand(imp,"Deselect");
-			cleaned = null; 
-			if ( erasing )
+			Roi tzp = RoiBoolean.ring( zps[i*2], zps[i*2+1] );
+			cleaned = tzp;
+			if ( tzp != null && tex.erased != null ) cleaned = util.getCleanedRoi( tzp, tex.erased, slice );
+			if ( cleaned != null )
 			{
-				cleaned = util.getCleanedRoi( rm, imp, tzp, erased, slice );
+				locbp.calcLBP(ip, cleaned, row, "ZP");
+				locbp.calcMultiScaleLBP(ip, cleaned, row, "ZP");
 			}
-			else cleaned = tzp;
-			imp.setSlice(slice);
-			cleaned.setImage(imp);
-			cleaned.setPosition(slice);
-			imp.setRoi(cleaned);
-			ip = imp.getProcessor();
-			locbp.calcLBP(ip, cleaned, myrt, "ZP");
+			else skipErased( mv, slice, "ZP LBP" );
+			rows[i] = row;
+		} );
+		appendRows( myrt, rows );
+		myrt.addResults();
+		myrt.save(resdir+File.separator+mv.purname+"_lbpFeatures.csv");
+		IJ.run(imp, "Select None", "");
+	}
 
-			myrt.addResults();
+	/** \brief Local Moran (LISA) maps inside the cleaned cortex, for each kernel size.
+	 * Maps are saved as a float hyperstack (one channel by kernel size), cropped to the box of all the cleaned contours 
+	 * (its offset in the texture movie is the calibration origin). Summary stats of each frame in the csv */
+	public void measureLocalMoran( MovieData mv )
+	{
+		MovieData.Scaled tex = mv.texture( scalexy/sizexy );
+		ImagePlus imp = tex.imp;
+		Roi[] cortex = tex.cortex;
+
+		int[] ksizes = parseInts(lisa_sizes);
+		double[] ks = new double[ksizes.length];
+		for ( int k = 0; k < ksizes.length; k++ )
+			ks[k] = ksizes[k];
+
+		ResultsTable myrt = new ResultsTable();
+                myrt.setPrecision​(precision);
+		String[] stats = {"Mean", "Q25", "Median", "Q75", "Hotspot"};
+		int nrois = cortex.length;
+
+		// maps cover only the box of all the cleaned contours
+		Roi[] cleaned = new Roi[nrois];
+		Rectangle box = null;
+		for ( int i = 0; i < nrois; i++ )
+		{
+			cleaned[i] = cortex[i];
+			if ( tex.erased != null ) cleaned[i] = util.getCleanedRoi( cortex[i], tex.erased, cortex[i].getPosition() );
+			if ( cleaned[i] == null ) continue;
+			Rectangle r = cleaned[i].getBounds();
+			box = ( box == null ) ? r : box.union( r );
 		}
-		myrt.save(resdir+File.separator+purname+"_lbpFeatures.csv");
+		if ( box != null ) box = box.intersection( new Rectangle(0, 0, imp.getWidth(), imp.getHeight()) );
+		if ( box == null || box.isEmpty() )
+		{
+			IJ.log( "No cortex to measure local Moran in "+mv.purname );
+			return;
+		}
+		final Rectangle crop = box;
+
+		// frames are independent: measure them in parallel, the shared Rois are only read.
+		// each frame keeps only its cropped maps, in time order, one channel by kernel size
+		ResultsTable[] rows = new ResultsTable[nrois];
+		Object[] planes = new Object[nrois*ks.length];
+		IntStream.range( 0, nrois ).parallel().forEach( i ->
+		{
+			int slice = cortex[i].getPosition();
+			ImagePlus frame = frame( imp, slice );
+			ResultsTable row = new ResultsTable();
+			row.incrementCounter();
+			row.addValue("Time", timeoff+(slice-1)*dtime);
+
+			if ( cleaned[i] == null )
+			{
+				// empty maps, stats NaN
+				skipErased( mv, slice, "local Moran" );
+				for ( int k = 0; k < ks.length; k++ )
+				{
+					float[] empty = new float[crop.width*crop.height];
+					Arrays.fill( empty, Float.NaN );
+					planes[i*ks.length+k] = empty;
+				}
+				rows[i] = row;
+				return;
+			}
+			MoranIndex mi = new MoranIndex();
+			float[][] local = mi.localIndices(frame.getProcessor(), cleaned[i], ks, crop);
+			for ( int k = 0; k < ks.length; k++ )
+			{
+				double[] res = mi.localStats(local[k], crop);
+				for ( int s = 0; s < stats.length; s++ )
+					row.addValue("OoLocalMoranK"+ksizes[k]+stats[s], res[s]);
+				planes[i*ks.length+k] = local[k];
+			}
+			rows[i] = row;
+		} );
+		appendRows( myrt, rows );
+		myrt.addResults();
+		myrt.save(resdir+File.separator+mv.purname+"_localMoranFeatures.csv");
+		IJ.run(imp, "Select None", "");
 
-		imp.changes = false;
-		imp.close();
+		ImageStack maps = new ImageStack(crop.width, crop.height);
+		for ( int i = 0; i < nrois; i++ )
+			for ( int k = 0; k < ks.length; k++ )
+				maps.addSlice("t"+cortex[i].getPosition()+"_K"+ksizes[k], planes[i*ks.length+k]);
+		if ( maps.getSize() > 0 )
+		{
+			ImagePlus lisaimp = new ImagePlus(mv.purname+"_localMoran", maps);
+			lisaimp.setDimensions(ks.length, 1, maps.getSize()/ks.length);
+			lisaimp.setOpenAsHyperStack(true);
+			// offset of the crop in the texture movie, as the ImageJ Crop command
+			Calibration mapcal = imp.getCalibration().copy();
+			mapcal.xOrigin -= crop.x;
+			mapcal.yOrigin -= crop.y;
+			lisaimp.setCalibration(mapcal);
+			IJ.saveAsTiff(lisaimp, resdir+File.separator+mv.purname+"_localMoran.tif");
+			lisaimp.close();
+		}
 	}
 
         /** \brief Try to look at spatial organisation */
-	public void measureSpatialFeatures()
+	public void measureSpatialFeatures( MovieData mv )
 	{
-		openImageRois( true, true, -1, false);
-		
 		ResultsTable myrt = new ResultsTable();
         myrt.setPrecision​(precision);
+		// measures skipped in some frames are NaN, not 0
+		myrt.setNaNEmptyCells(true);
 		
-		for ( int i=0; i < rm.getCount(); i++ )
+		for ( int i=0; i < mv.cortex.length; i++ )
 		{
-			rm.select(i);
-			Roi cur = rm.getRoi(i);
+			Roi cur = mv.cortex[i];
             int slice = cur.getPosition();
 			myrt.incrementCounter();
 			//myrt.addValue("Slice", slice);
 			myrt.addValue("Time", timeoff+(slice-1)*dtime);
-			structureNearCortex( imp, i, myrt );
+			structureNearCortex( mv, cur, myrt );
 			myrt.addResults();
 		}
 
-		myrt.save(resdir+File.separator+purname+"_spatialFeatures.csv");
-	
-		imp.changes = false;
-		imp.close();
+		myrt.save(resdir+File.separator+mv.purname+"_spatialFeatures.csv");
+		IJ.run(mv.imp, "Select None", "");
 	}
 	
-	public void structureNearCortex(ImagePlus img, int i, ResultsTable myrt)
+	public void structureNearCortex(MovieData mv, Roi cur, ResultsTable myrt)
 	{
-		String path = resdir+File.separator+purname;
-		rm.select(i);
-		Roi cur = rm.getRoi(i);
+		String path = resdir+File.separator+mv.purname;
+		ImagePlus img = mv.imp;
 		int slice = cur.getPosition();
 		img.setSlice(slice);
 		IJ.run(img, "Select None", "");
 		ImagePlus imslice = img.crop( slice+"-"+slice); 
-		img.setRoi(cur);	
+		img.setRoi( frameRoi(cur, img) );	
 		
 		// if some pixels inside ROI have been erased
 		Roi cleaned; 
-		if ( erasing )
+		if ( mv.erasing() )
 		{
-			cleaned = util.getCleanedRoi( rm, imp, cur, erased, slice );
+			cleaned = util.getCleanedRoi( cur, mv.erased, slice );
 		}
 		else cleaned = cur;
+		if ( cleaned == null )
+		{
+			imslice.changes = false;
+			imslice.close();
+			skipErased( mv, slice, "structures" );
+			return;
+		}
+		// Structures binds the Rois to the FeatureJ images, copies so that the shared ones stay unbound
+		cur = (Roi) cur.clone();
+		cleaned = (Roi) cleaned.clone();
 
-		Structures struc = new Structures();
-		struc.distanceStructuresToEdge(imslice, cur, cleaned, myrt, path);			
-		
-		IJ.run(imslice, "Select None", "");
-		double[] part = struc.particleSizes(imslice, cur, cleaned);			
+		// FeatureJ results are found by their window title
+		double[] part;
+		synchronized ( Utils.ijLock )
+		{
+			Structures struc = new Structures();
+			struc.distanceStructuresToEdge(imslice, cur, cleaned, myrt, path);			
+			
+			IJ.run(imslice, "Select None", "");
+			part = struc.particleSizes(imslice, cur, cleaned);			
+		}
 		myrt.addValue("OoParticleNumber", part[0]);
 		myrt.addValue("OoParticleAverageSize", part[1]*scalexy*scalexy);
 	
@@ -707,47 +797,54 @@ public class MeasureFeatures implements PlugIn
 		imslice.close();
 	}
 
-	public void measurePIV()
+	public void measurePIV( MovieData mv )
 	{
-		String tmpfile = resdir+File.separator+"PIVFile.txt";
+		// own temporary file, so that only the PIV plugin itself runs one movie at a time
+		String tmpfile = resdir+File.separator+mv.purname+"_PIVFile.txt";
+
+		ResultsTable myrt = new ResultsTable();
+                myrt.setPrecision​(precision);
 
-		double factxy = scalexy/pivsize;
-		openImageRois(true, false, factxy, false);
+		// own rescaled copy, cleared and cropped
+		MovieData.Scaled scaled = mv.scaled( scalexy/pivsize );
 		
 		// minimumRoi
-		rm.runCommand(imp,"Deselect");
-		rm.runCommand(imp,"AND");
-		Roi cur = imp.getRoi();
+		Roi cur = RoiBoolean.and( scaled.cortex );
 		Roi cleaned; 
-		if ( erasing )
+		if ( cur != null && scaled.erased != null )
 		{
-			cleaned = util.getCleanedRoi( rm, imp, cur, erased, -1);
+			cleaned = util.getCleanedRoi( cur, scaled.erased, -1);
 		}
 		else cleaned = cur;
-		cleaned.setImage(imp);
-		imp.setRoi(cleaned);
-		IJ.run(imp, "Clear Outside", "stack");
-		IJ.run(imp, "Crop", "");
-		rm.runCommand(imp,"Deselect");
-		IJ.run(imp, "Select None", "");
+		if ( cleaned == null )
+		{
+			// the contours of the different times don't overlap (or are all erased)
+			IJ.log( "No common area to all the cortex contours in "+mv.purname+", PIV skipped" );
+			util.close( scaled.imp );
+			return;
+		}
+		ImagePlus imp = clearAndCrop( scaled.imp, cleaned );
+		util.close( scaled.imp );
 
 		double[] cent = {imp.getWidth()/2.0, imp.getHeight()/2.0};
 		double rad = (imp.getWidth()+imp.getHeight())/4.0;  // mean of radii
 
-		ResultsTable myrt = new ResultsTable();
-                myrt.setPrecision​(precision);
-		
-		
-
 		int nslice = (maxslice>0)?maxslice:imp.getNSlices();
                 PIV piver = new PIV();
 		for ( int i = 1; i < nslice; i++ )
 		{	
 			// run PIV on two consecutives images
 			ImagePlus two = imp.crop(""+i+"-"+(i+1));
-			two.show();
-			
-                        piver.runOneTimeDiff(two, cent, rad, tmpfile);
+			// the PIV plugin works on the shown images
+			synchronized ( Utils.ijLock )
+			{
+				two.show();
+				piver.runPlugin(two, tmpfile);
+				// close all
+				two.changes = false;
+				two.close();
+			}
+			piver.readPIVFile(tmpfile, cent, rad);
                         if (i ==1 )
                         {
                              myrt.incrementCounter();
@@ -758,40 +855,49 @@ public class MeasureFeatures implements PlugIn
                         myrt.addValue("Time", timeoff+(i)*dtime);
                         piver.writePIVResults(1, myrt, pivsize/dtime);
                         myrt.addResults();
-        
-			// close all
-			two.changes = false;
-			two.close();
 		}
 		myrt.incrementCounter();
 		//myrt.addValue("Slice", imp.getNSlices());
 		myrt.addValue("Time", timeoff+(imp.getNSlices())*dtime);
                 piver.writePIVResults(0, myrt, pivsize/dtime);
 		myrt.addResults();
+		util.close(imp);
+		new File(tmpfile).delete();
+		myrt.save(resdir+File.separator+mv.purname+"_pivFeatures.csv");
+	}
 
-		myrt.save(resdir+File.separator+purname+"_pivFeatures.csv");
-	
-		imp.changes = false;
-		imp.close();
-		IJ.run("Close All", "");
+	/** \brief Copy of the movie with the outside of the roi cleared (background color, as "Clear Outside"), cropped to the roi bounds.
+	 * Done on the processors, without IJ commands, so no lock is needed */
+	public ImagePlus clearAndCrop( ImagePlus imp, Roi roi )
+	{
+		Roi clear = (Roi) roi.clone();
+		Rectangle bounds = clear.getBounds().intersection( new Rectangle(0, 0, imp.getWidth(), imp.getHeight()) );
+		ImageStack stack = imp.getStack();
+		ImageStack cropped = new ImageStack( bounds.width, bounds.height );
+		for ( int z = 1; z <= stack.getSize(); z++ )
+		{
+			ImageProcessor ip = stack.getProcessor(z).duplicate();
+			ip.setGlobalBackgroundColor();
+			ip.fillOutside( clear );
+			ip.setRoi( bounds );
+			cropped.addSlice( stack.getSliceLabel(z), ip.crop() );
+		}
+		ImagePlus res = new ImagePlus( imp.getTitle(), cropped );
+		res.setCalibration( imp.getCalibration() );
+		return res;
 	}
 
 	
 
 	/** \brief Measure ZP tube structures, all and vertical */
-	public void measureZPStructures()
+	public void measureZPStructures( MovieData mv )
 	{
+		RoiManager rm = mv.rm;
 		ResultsTable myrt = new ResultsTable();
                 myrt.setPrecision​(precision);
 		
-		
-		openImageRois(false, true, -1, false);
-		rm.reset();
-		IJ.run(imp, "Select None", "");
-		// get ZP Rois and load cortex Roi in RoiManager
-		rm.runCommand("Open", dir+"contours"+File.separator+purname+"_ZP.zip");
-		Roi[] zps = rm.getRoisAsArray();
-		rm.runCommand(imp,"Deselect");
+		ImagePlus imp = mv.imp;
+		Roi[] zps = mv.zps;
 		rm.reset();
 		IJ.run(imp, "Select None", "");
 		
@@ -807,35 +913,37 @@ public class MeasureFeatures implements PlugIn
 			myrt.addValue("Time", timeoff+(slice-1)*dtime);
 			//imp.setSlice(slice);
 			IJ.run(imp, "Select None", "");
-			ImagePlus ip = imp.crop(slice+"-"+slice);
-			ip.show();
-		
 			Roi mean = util.meanRoi( in, out );
                         double meand = util.roiMeanThickness(in, out);
-                        StraightZP straighter = new StraightZP(meand, (int)(0.5/scalexy), (int)(1.2/scalexy));
-			straighter.createStraight(ip, mean);
-			util.close(ip);
-			straighter.clearZone(rm);
-			straighter.getStructures(myrt);
-                        straighter.close();
+			// the straightened ZP is analysed on shown images
+			synchronized ( Utils.ijLock )
+			{
+				ImagePlus ip = imp.crop(slice+"-"+slice);
+				ip.show();
+			
+                        	StraightZP straighter = new StraightZP(meand, (int)(0.5/scalexy), (int)(1.2/scalexy));
+				straighter.createStraight(ip, mean);
+				util.close(ip);
+				straighter.clearZone(rm);
+				straighter.getStructures(myrt);
+                        	straighter.close();
+			}
 		}
 		
-		util.close(imp);
+		IJ.run(imp, "Select None", "");
 		myrt.addResults();
-		myrt.save(resdir+File.separator+purname+"_zpTubeFeatures.csv");
+		myrt.save(resdir+File.separator+mv.purname+"_zpTubeFeatures.csv");
 	}
 	
 	/** \brief Nucleus position, absolute, relative and normalized */
-	public void measureNucleusPosition()
+	public void measureNucleusPosition( MovieData mv )
 	{
-		// initialize everything
-		openImageRois(true, false, -1, false);	
-		int nrois = rm.getCount();
+		int nrois = mv.cortex.length;
 		ResultsTable myrt = new ResultsTable();
         myrt.setPrecision​(precision);
         
         // Open nucleus position file
-		ResultsTable nucrt = openNucleusPosition();
+		ResultsTable nucrt = openNucleusPosition( mv );
 		// No nucleus found
 		if ( nucrt.getCounter() <= 0 )
 		{
@@ -855,7 +963,7 @@ public class MeasureFeatures implements PlugIn
 			for ( int i=0; i < nrois; i++ )
 			{
 				// Get current frame
-				Roi cur = rm.getRoi(i);
+				Roi cur = mv.cortex[i];
 				int cur_slice = cur.getPosition();
 				// if first index, check if starts at 0 or not
 				if ( i==0 )
@@ -909,16 +1017,12 @@ public class MeasureFeatures implements PlugIn
 				myrt.addResults();
 			}
 		}
-		myrt.save(resdir+File.separator+purname+"_nucleusRelativePosition.csv");
-        imp.changes = false;
-		imp.close();
+		myrt.save(resdir+File.separator+mv.purname+"_nucleusRelativePosition.csv");
 	}
 	
-	public ResultsTable openNucleusPosition()
+	public ResultsTable openNucleusPosition( MovieData mv )
 	{
-		String purname = inname.substring(0, inname.lastIndexOf('.'));
-		
-		File nucFile = new File(dir+"contours"+File.separator+purname+"_nucleusPosition.csv");
+		File nucFile = new File(mv.contourFile("_nucleusPosition.csv"));
          
 		if ( nucFile.exists() )
 	    {
@@ -936,132 +1040,53 @@ public class MeasureFeatures implements PlugIn
 		return null;
 	}
 
-	public void openImageRois(boolean openCortex,  boolean openErased, double fact, boolean getOut)
-	{
-		// open, reset
-		String imgname = dir+inname;
-		
-		String ext = inname.substring(inname.lastIndexOf('.'));
-		if ( ext.equals(".png") )
-		{
-                    IJ.open(imgname);
-                    imp = IJ.getImage();
-		}
-		else
-		{
-                    imp = IJ.openVirtual(imgname);
-		}
-		util.initCalibration(imp);
-		//rm.runCommand(imp,"Deselect");
-               rm.reset();
-		imp.show();
-		IJ.run(imp, "Select None", "");
-
-        purname = inname.substring(0, inname.lastIndexOf('.'));
-		//get outside Roi
-		if ( getOut )
-                {
-                    File roiFile = new File(dir+"contours"+File.separator+purname+"_ZP.zip");
-                    int enl = (int) Math.floor(1.2/scalexy);
-                    if (roiFile.isFile()) outside = util.getOutsideRoi(imp, fact, dir+"contours"+File.separator+purname+"_ZP.zip", rm, enl);
-                    else 
-                    {
-                        enl = (int) Math.floor(15/scalexy);
-                        outside = util.getOutsideRoi(imp, fact, dir+"contours"+File.separator+purname+"_UnetCortex.zip", rm, enl);
-                    }
-                }
-                
-        // rescale if needed
-		if ( fact > 0 )
+        /** \brief Choose which measures to do according to selected cases in the dialog.
+         * The movie and its contours are opened once, and shared by all the measures */
+        public void measure( String inname )
+        {
+		MovieData mv = new MovieData( dir, inname, scalexy, util );
+		if ( mv.cortex == null )
 		{
-			// put all images to same size in microns for comparable texture 
-			int newwidth = (int) Math.round(imp.getWidth()*fact);
-			int newheight = (int) Math.round(imp.getHeight()*fact);
-			IJ.run(imp, "Size...", "width="+newwidth+" height="+newheight+" depth="+imp.getNSlices()+" constrain average interpolation=Bilinear");
-		}
-	
-                if ( openErased )
-		{	
-                    // get erased zones	
-                    File erasedZIP = new File(dir+"contours"+File.separator+purname+"_erased.zip");
-                    erasing = false;
-                    erased = null;
-                    if ( erasedZIP.exists() )
-                    {
-                        rm.runCommand("Open", dir+"contours"+File.separator+purname+"_erased.zip");
-                        erasing = true;
-                        if ( fact > 0 )
-                                util.rescaleRois(rm,imp,fact);
-                        erased = rm.getRoisAsArray();
-                        rm.reset();
-                    }
+			IJ.log("No cortex contours found for "+inname+", skipped");
+			mv.close();
+			return;
 		}
+		boolean hasZP = ( mv.zps != null );
+		if ( !hasZP && (zp || periv || texture || lbp || zpstruc) )
+			IJ.log("No ZP contours found for "+inname+", ZP related measures skipped");
 
-		if ( openCortex )
+		try
 		{
-            rm.runCommand("Open", dir+"contours"+File.separator+purname+"_UnetCortex.zip");
-            if ( fact > 0 )
-               util.rescaleRois(rm,imp,fact);
-        }
-	}
-        
-        /** \brief Choose which measures to do according to selected cases in the dialog */
-        public void measure()
-        {
             if ( oocyte )
-            {	
-                IJ.run("Close All");
-                measureOocyte();
-            }
-		if ( zp )
-		{
-			IJ.run("Close All");
-			measureZPFeatures();
-		}
-                if ( periv )
-		{
-			IJ.run("Close All");
-			measurePerivFeatures();
-		}
+                measureOocyte( mv );
+		if ( zp && hasZP )
+			measureZPFeatures( mv );
+                if ( periv && hasZP )
+			measurePerivFeatures( mv );
 		if ( fluct )
-		{
-                      IJ.run("Close All");
-                      calcShapeFluctuations();
-		}
+                      calcShapeFluctuations( mv );
 		
-		if ( texture )
-		{
-			IJ.run("Close All");
-			measureImageTexture();
-		}
-		if ( lbp )
-		{
-			IJ.run("Close All");
-			measureImageLBP();
-		}
+		if ( texture && hasZP )
+			measureImageTexture( mv );
+		if ( lbp && hasZP )
+			measureImageLBP( mv );
+		if ( lisa )
+			measureLocalMoran( mv );
              
 		if ( piv )
-		{
-			IJ.run("Close All");
-			measurePIV();
-		}
+			measurePIV( mv );
 		
 		if ( spatial )
-		{
-			IJ.run("Close All");
-			measureSpatialFeatures();
-		}
+			measureSpatialFeatures( mv );
 		if ( nucleus_position )
-		{
-			IJ.run("Close All");
-			measureNucleusPosition();
+			measureNucleusPosition( mv );
+		if ( zpstruc && hasZP )
+			measureZPStructures( mv );
 		}
-		if ( zpstruc )
+		finally
 		{
-			IJ.run("Close All");
-			measureZPStructures();
+			mv.close();
 		}
-	
         }
 
 	public void run(String arg)
@@ -1069,8 +1094,6 @@ public class MeasureFeatures implements PlugIn
 		if ( !getParameters() ) { return; }
 		IJ.run("Close All");
 
-		rm = RoiManager.getInstance();
-		if ( rm == null ) rm = new RoiManager();
 		util = new Utils();
 
 		resdir = dir+"measures";
@@ -1081,25 +1104,110 @@ public class MeasureFeatures implements PlugIn
                 // Performs on all images in chosen directory
 		File thedir = new File(dir); 
 		File[] fileList = thedir.listFiles(); 
+		List<File> movies = new ArrayList<>();
 			
         for (File fily : fileList) 
         {
               if ( fily.isFile() )
               {
-                        inname = fily.getName();
+                        String inname = fily.getName();
                         int j = inname.lastIndexOf('.');
                         if (j > 0)
                         {
                             String extension = inname.substring(j);
                             if ( extension.equals(".tif") | extension.equals(".TIF") | extension.equals(".png") | extension.equals(".jpg") | extension.equals(".JPG") )
                             {
-                                measure();
+                                movies.add( fily );
                             }
                         
                         }
               }
-          System.gc(); // garbage collector
           }
+
+		if ( nmovies <= 1 )
+		{
+			for ( File fily : movies )
+			{
+				measure( fily.getName() );
+				System.gc(); // garbage collector
+			}
+		}
+		else
+			measureInParallel( movies );
+	}
+
+	/** \brief Measure the movies on a pool of nmovies workers.
+	 * A movie is started only when its estimated memory fits in what is left by the movies in progress.
+	 * Movies that need more than all the memory are measured alone at the end */
+	public void measureInParallel( List<File> movies )
+	{
+		final int maxmb = (int) Math.max( 1, IJ.maxMemory()*0.75/(1024*1024) );
+		final Semaphore memory = new Semaphore( maxmb, true );
+		final double texfact = ( texture || lbp || lisa ) ? scalexy/sizexy : -1;
+		final double pivfact = piv ? scalexy/pivsize : -1;
+		final int nmaps = lisa ? parseInts(lisa_sizes).length : 0;
+		final ExecutorService workers = Executors.newFixedThreadPool( nmovies );
+		List< File > started = new ArrayList<>();
+		List< File > alone = new ArrayList<>();
+		List< Future<?> > running = new ArrayList<>();
+		for ( File fily : movies )
+		{
+			final long need = MovieData.estimateMemory( fily, texfact, pivfact, nmaps );
+			if ( need > maxmb )
+			{
+				alone.add( fily );
+				continue;
+			}
+			started.add( fily );
+			running.add( workers.submit( () -> 
+			{
+				// cancelled while waiting for memory
+				memory.acquire( (int) need );
+				try
+				{
+					measure( fily.getName() );
+				}
+				finally
+				{
+					memory.release( (int) need );
+				}
+				return null;
+			} ) );
+		}
+		workers.shutdown();
+
+		// wait for all the movies, a failed one does not stop the others
+		for ( int i = 0; i < running.size(); i++ )
+		{
+			try
+			{
+				running.get( i ).get();
+			}
+			catch ( InterruptedException e )
+			{
+				workers.shutdownNow();
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch ( ExecutionException e )
+			{
+				IJ.log( "Measures failed for "+started.get( i ).getName()+": "+e.getCause() );
+			}
+		}
+
+		for ( File fily : alone )
+		{
+			IJ.log( "Not enough memory to measure "+fily.getName()+" with other movies, measured alone" );
+			try
+			{
+				measure( fily.getName() );
+			}
+			catch ( Exception e )
+			{
+				IJ.log( "Measures failed for "+fily.getName()+": "+e );
+			}
+			System.gc(); // garbage collector
+		}
 	}
                 
 		
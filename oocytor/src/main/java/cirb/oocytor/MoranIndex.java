@@ -58,67 +58,228 @@ package cirb.oocytor;
 import ij.process.*;
 import ij.gui.*;
 import java.awt.*;
+import java.util.Arrays;
 
 public class MoranIndex
 {
 
 	double ksize = 10;
+
+	// roi prepared by prepare(): pixel values and row/column prefix sums over its bounds
+	int bx, by, bw, bh;
+	int n;
+	double mu;
+	double sumsq;
+	int[] vals;
+	boolean[] inside;
+	long[] rowv, colv;
+	int[] rowm, colm;
 	
 	public double distance( int x1, int y1, int x2, int y2 )
 	{
 		return Math.sqrt( Math.pow(x1-x2,2) + Math.pow(y1-y2,2) );
 	}
 
-	public double calcIndex(ImageProcessor ip, Roi roi)
+	/** \brief Read the roi pixels and build the prefix sums, along rows and columns, of the values and of the mask.
+	 * Done once per roi and image, then shared by all the kernel sizes */
+	public void prepare(ImageProcessor ip, Roi roi)
 	{
-		double index = 0;
-		double sumw = 0;
-		double sumsq = 0;
-		int n = 0;
-
 		ip.setRoi(roi);
 		ImageStatistics mystat = ip.getStatistics();
-		double mu = mystat.mean; // mean value inside ROI
+		mu = mystat.mean; // mean value inside ROI
 
 		Rectangle rec = roi.getBounds();
-		// For each point inside the roi, xi
-		for ( int xi = rec.x; xi < (rec.x+rec.width); xi++ )
+		RoiMask mask = RoiMask.get(roi, roi.getPosition());
+		bx = rec.x;
+		by = rec.y;
+		bw = rec.width;
+		bh = rec.height;
+		vals = new int[bw*bh];
+		inside = new boolean[bw*bh];
+		rowv = new long[bh*(bw+1)];
+		rowm = new int[bh*(bw+1)];
+		colv = new long[bw*(bh+1)];
+		colm = new int[bw*(bh+1)];
+		n = 0;
+		sumsq = 0;
+		for ( int y = 0; y < bh; y++ )
 		{
-			for ( int yi = rec.y; yi < (rec.y+rec.height); yi++ )
+			for ( int x = 0; x < bw; x++ )
 			{
-				if ( roi.contains(xi,yi) )
+				int v = 0;
+				int m = 0;
+				if ( mask.contains(bx+x, by+y) )
 				{
+					v = ip.getPixel(bx+x, by+y);
+					m = 1;
 					n++;
-					double vi = ip.getPixel(xi,yi);
-					sumsq += Math.pow(vi-mu,2);
-					
-					// Look for neighboring pixels inside ROI
-					for ( int xj = (int) Math.max(rec.x, xi-ksize-1); xj <= (int) Math.min(rec.x+rec.width, xi+ksize+1); xj++ )
-				{	
-					if ( xi!=xj )
-					{
-					for ( int yj = (int) Math.max(rec.y, yi-ksize-1); yj <= (int) Math.min(rec.y+rec.height, yi+ksize+1); yj++ )
+					sumsq += (v-mu)*(v-mu);
+				}
+				vals[y*bw+x] = v;
+				inside[y*bw+x] = (m==1);
+				rowv[y*(bw+1)+x+1] = rowv[y*(bw+1)+x] + v;
+				rowm[y*(bw+1)+x+1] = rowm[y*(bw+1)+x] + m;
+				colv[x*(bh+1)+y+1] = colv[x*(bh+1)+y] + v;
+				colm[x*(bh+1)+y+1] = colm[x*(bh+1)+y] + m;
+			}
+		}
+	}
+
+	/** \brief Half width of the disc kernel for each row offset dy (index dy+K): largest dx with distance <= ks */
+	int[] halfWidths( double ks )
+	{
+		int kk = (int) Math.floor(ks);
+		int[] hw = new int[2*kk+1];
+		for ( int dy = -kk; dy <= kk; dy++ )
+		{
+			int dx = 0;
+			while ( distance(0, 0, dx+1, dy) <= ks )
+				dx++;
+			hw[dy+kk] = dx;
+		}
+		return hw;
+	}
+
+	/** \brief Sum of the values and number of the roi pixels within distance ks of (x,y) (in bounds coordinates), excluding the row and the column of (x,y) */
+	void neighbourSums( int x, int y, int[] hw, long[] res )
+	{
+		int kk = hw.length/2;
+		long sv = 0;
+		long sm = 0;
+		// disc, row by row
+		for ( int dy = -kk; dy <= kk; dy++ )
+		{
+			int yy = y + dy;
+			if ( yy < 0 || yy >= bh )
+				continue;
+			int x1 = Math.max(x-hw[dy+kk], 0);
+			int x2 = Math.min(x+hw[dy+kk], bw-1);
+			if ( x1 > x2 )
+				continue;
+			int row = yy*(bw+1);
+			sv += rowv[row+x2+1] - rowv[row+x1];
+			sm += rowm[row+x2+1] - rowm[row+x1];
+		}
+		// remove the row and the column of the pixel, counted twice for the pixel itself
+		int x1 = Math.max(x-kk, 0);
+		int x2 = Math.min(x+kk, bw-1);
+		int row = y*(bw+1);
+		sv -= rowv[row+x2+1] - rowv[row+x1];
+		sm -= rowm[row+x2+1] - rowm[row+x1];
+		int y1 = Math.max(y-kk, 0);
+		int y2 = Math.min(y+kk, bh-1);
+		int col = x*(bh+1);
+		sv -= colv[col+y2+1] - colv[col+y1];
+		sm -= colm[col+y2+1] - colm[col+y1];
+		sv += vals[y*bw+x];
+		sm += inside[y*bw+x] ? 1 : 0;
+		res[0] = sv;
+		res[1] = sm;
+	}
+
+	/** \brief Moran index for several kernel sizes, from one reading of the roi.
+	 * Neighbours of a pixel are the roi pixels at distance <= ksize, not on its row nor its column */
+	public double[] calcIndices(ImageProcessor ip, Roi roi, double[] ksizes)
+	{
+		prepare(ip, roi);
+		double[] res = new double[ksizes.length];
+		long[] sums = new long[2];
+		for ( int k = 0; k < ksizes.length; k++ )
+		{
+			int[] hw = halfWidths(ksizes[k]);
+			double index = 0;
+			double sumw = 0;
+			for ( int y = 0; y < bh; y++ )
+			{
+				for ( int x = 0; x < bw; x++ )
 				{
-					// exclude outside ROI and self pixel
-					if ( roi.contains(xj,yj) && ((yi!=yj)))
+					if ( inside[y*bw+x] )
 					{
-						// inside neighboring
-						if ( distance( xi,yi, xj, yj) <= ksize )
-						{
-							sumw += 1;
-							double vj = ip.getPixel(xj,yj);
-							index += (vi-mu)*(vj-mu);
-						}				
+						neighbourSums(x, y, hw, sums);
+						sumw += sums[1];
+						index += (vals[y*bw+x]-mu)*(sums[0]-mu*sums[1]);
 					}
 				}
-					}
 			}
+			res[k] = n/sumw * index/sumsq;
+		}
+		return res;
+	}
+
+	/** \brief Local Moran index (LISA, Anselin 1995) of each roi pixel for several kernel sizes, same neighbourhoods as calcIndices.
+	 * Weights are row standardised: I_i = z_i * mean(z_j over neighbours) / m2, with z = v-mu and m2 the mean of z^2 in the roi.
+	 * Maps cover only the box (image coordinates), NaN outside the roi */
+	public float[][] localIndices(ImageProcessor ip, Roi roi, double[] ksizes, Rectangle box)
+	{
+		prepare(ip, roi);
+		int w = ip.getWidth();
+		int h = ip.getHeight();
+		double m2 = sumsq/n;
+		float[][] maps = new float[ksizes.length][box.width*box.height];
+		long[] sums = new long[2];
+		for ( int k = 0; k < ksizes.length; k++ )
+		{
+			float[] map = maps[k];
+			Arrays.fill(map, Float.NaN);
+			int[] hw = halfWidths(ksizes[k]);
+			for ( int y = 0; y < bh; y++ )
+			{
+				int iy = by + y;
+				if ( iy < 0 || iy >= h ) continue;
+				for ( int x = 0; x < bw; x++ )
+				{
+					int ix = bx + x;
+					if ( ix < 0 || ix >= w || !inside[y*bw+x] || !box.contains(ix, iy) ) continue;
+					neighbourSums(x, y, hw, sums);
+					double lag = (sums[1] > 0) ? (sums[0]-mu*sums[1])/sums[1] : 0;
+					map[(iy-box.y)*box.width+ix-box.x] = (float) ((vals[y*bw+x]-mu)*lag/m2);
+				}
+			}
+		}
+		return maps;
+	}
+
+	/** \brief Summary of a local Moran map of the last prepared roi: mean, 25%, 50%, 75% quantiles and hotspot fraction.
+	 * Hotspots are the high-high pixels: value above the roi mean and positive local index (so neighbours above the mean too) */
+	public double[] localStats(float[] map, Rectangle box)
+	{
+		double[] vs = new double[n];
+		int nv = 0;
+		int hot = 0;
+		double sum = 0;
+		for ( int y = 0; y < bh; y++ )
+		{
+			for ( int x = 0; x < bw; x++ )
+			{
+				if ( !inside[y*bw+x] ) continue;
+				int ix = bx + x;
+				int iy = by + y;
+				if ( !box.contains(ix, iy) ) continue;
+				float v = map[(iy-box.y)*box.width+ix-box.x];
+				vs[nv++] = v;
+				sum += v;
+				if ( v > 0 && vals[y*bw+x] > mu )
+					hot++;
 			}
-		}	
+		}
+		double[] res = new double[5];
+		if ( nv == 0 ) 
+		{
+			Arrays.fill(res, Double.NaN);
+			return res;
+		}
+		Arrays.sort(vs, 0, nv);
+		res[0] = sum/nv;
+		res[1] = vs[(int) Math.floor(0.25*(nv-1))];
+		res[2] = vs[(int) Math.floor(0.5*(nv-1))];
+		res[3] = vs[(int) Math.floor(0.75*(nv-1))];
+		res[4] = (double) hot/nv;
+		return res;
 	}
-		index = n/sumw * index/sumsq;
 
-	return index;	
+	public double calcIndex(ImageProcessor ip, Roi roi)
+	{
+		return calcIndices(ip, roi, new double[]{ksize})[0];
 	}
 
 	public double run(double ks, ImageProcessor ip, Roi roi)
@@ -126,5 +287,9 @@ public class MoranIndex
 		ksize = ks;
 		return calcIndex(ip, roi);
 	}
-}
 
+	public double[] run(double[] ks, ImageProcessor ip, Roi roi)
+	{
+		return calcIndices(ip, roi, ks);
+	}
+}
@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import ij.*;
+import ij.gui.*;
+import ij.plugin.*;
+import ij.plugin.frame.*;
+import java.io.*;
+
+/**
+ * \brief One movie and its contours, opened once and shared by all the measures
+ *
+ * The image and the contour archives (_UnetCortex, _ZP, _erased) are read when the movie is opened. 
+ * The other representations (outside Roi, movie rescaled for texture) are derived the first time a measure asks for them, 
+ * then kept until the movie is closed.
+ * Each movie has its own hidden RoiManager and its images are not shown, so that several movies can be measured at the same time.
+ *
+ * @author Gaelle Letort
+ */
+public class MovieData
+{
+	String dir;
+	String inname;
+	String purname;
+	ImagePlus imp; // native movie, in pixels
+	Roi[] cortex; // cortex contour of each frame
+	Roi[] zps; // inside and outside ZP contours of each frame, null if no ZP file
+	Roi[] erased; // erased zones, null if no erased file
+	double scalexy;
+
+	RoiManager rm;
+	Utils util;
+
+	private Roi outside = null;
+	private Scaled texture = null;
+
+	/** \brief Movie and Rois rescaled to another pixel size */
+	static class Scaled
+	{
+		ImagePlus imp;
+		double fact;
+		Roi[] cortex;
+		Roi[] zps;
+		Roi[] erased;
+	}
+
+	/** \brief Open the movie dir/inname and its contours */
+	public MovieData( String dir, String inname, double scalexy, Utils util )
+	{
+		this.dir = dir;
+		this.inname = inname;
+		this.scalexy = scalexy;
+		this.rm = new RoiManager(true);
+		this.util = util;
+		purname = inname.substring(0, inname.lastIndexOf('.'));
+
+		String imgname = dir+inname;
+		String ext = inname.substring(inname.lastIndexOf('.'));
+		if ( ext.equals(".png") )
+			imp = IJ.openImage(imgname);
+		else
+			imp = IJ.openVirtual(imgname);
+		util.initCalibration(imp);
+		IJ.run(imp, "Select None", "");
+
+		cortex = openRois( "_UnetCortex.zip" );
+		zps = openRois( "_ZP.zip" );
+		erased = openRois( "_erased.zip" );
+	}
+
+	/** \brief Path of the contour archive of this movie */
+	public String contourFile( String suffix )
+	{
+		return dir+"contours"+File.separator+purname+suffix;
+	}
+
+	/** \brief Rois of the contour archive, null if it doesn't exist */
+	Roi[] openRois( String suffix )
+	{
+		File roiFile = new File( contourFile(suffix) );
+		if ( !roiFile.isFile() )
+			return null;
+		rm.reset();
+		rm.runCommand("Open", roiFile.getAbsolutePath());
+		Roi[] rois = rm.getRoisAsArray();
+		rm.reset();
+		return rois;
+	}
+
+	public boolean erasing()
+	{
+		return erased != null;
+	}
+
+	/** \brief Area outside the ZP (or the enlarged cortex if no ZP), to normalise the intensities */
+	public Roi outside()
+	{
+		if ( outside == null )
+		{
+			synchronized ( Utils.ijLock )
+			{
+				if ( zps != null )
+					outside = util.getOutsideRoi(imp, -1, contourFile("_ZP.zip"), rm, (int) Math.floor(1.2/scalexy));
+				else
+					outside = util.getOutsideRoi(imp, -1, contourFile("_UnetCortex.zip"), rm, (int) Math.floor(15/scalexy));
+			}
+		}
+		return outside;
+	}
+
+	/** \brief 8-bit movie and Rois scaled to the texture pixel size (fact = scalexy/sizexy), shared by texture, LBP and Moran measures */
+	public Scaled texture( double fact )
+	{
+		if ( texture == null || texture.fact != fact )
+		{
+			if ( texture != null ) util.close(texture.imp);
+			texture = scaled( fact );
+			IJ.run(texture.imp, "8-bit", "");
+		}
+		return texture;
+	}
+
+	/** \brief New copy of the movie and Rois scaled by fact, to be closed by the caller */
+	public Scaled scaled( double fact )
+	{
+		Scaled res = new Scaled();
+		res.fact = fact;
+		int newwidth = (int) Math.round(imp.getWidth()*fact);
+		int newheight = (int) Math.round(imp.getHeight()*fact);
+		synchronized ( Utils.ijLock )
+		{
+			res.imp = imp.duplicate();
+			res.imp.setTitle(purname+"_scaled");
+			IJ.run(res.imp, "Size...", "width="+newwidth+" height="+newheight+" depth="+imp.getNSlices()+" constrain average interpolation=Bilinear");
+		}
+		res.cortex = scaleRois(cortex, fact);
+		res.zps = scaleRois(zps, fact);
+		res.erased = scaleRois(erased, fact);
+		return res;
+	}
+
+	/** \brief Copies of the Rois scaled by fact, keeping their frame */
+	Roi[] scaleRois( Roi[] rois, double fact )
+	{
+		if ( rois == null )
+			return null;
+		RoiScaler scaler = new RoiScaler();
+		Roi[] res = new Roi[rois.length];
+		for ( int i = 0; i < rois.length; i++ )
+		{
+			res[i] = scaler.scale(rois[i], fact, fact, false);
+			res[i].setPosition(rois[i].getPosition());
+		}
+		return res;
+	}
+
+	/** \brief Memory needed to measure the movie in MB, estimated from the file size and the rescaled copies (fact <= 0 if not needed),
+	 * and the nmaps local Moran float maps of each frame of the texture copy */
+	public static long estimateMemory( File movie, double texfact, double pivfact, int nmaps )
+	{
+		double mb = movie.length()/(1024.0*1024.0);
+		// the movie, and for each rescaled copy (fact > 0) the duplicated and the resized movie
+		double copies = 1;
+		if ( texfact > 0 ) copies += 1 + texfact*texfact;
+		// float maps at most of the size of the texture frames (4 bytes by pixel, 8-bit movies)
+		if ( texfact > 0 ) copies += 4*nmaps*texfact*texfact;
+		if ( pivfact > 0 ) copies += 1 + pivfact*pivfact;
+		return (long) Math.ceil( mb*copies ) + 64;
+	}
+
+	/** \brief Close the movie, its derived representations and its RoiManager */
+	public void close()
+	{
+		if ( texture != null ) util.close(texture.imp);
+		texture = null;
+		util.close(imp);
+		rm.reset();
+		rm.close();
+	}
+}
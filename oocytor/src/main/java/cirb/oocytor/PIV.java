@@ -75,6 +75,15 @@ public class PIV
     }
     
     public void runOneTimeDiff(ImagePlus img, double[] cent, double rad, String tmpfile)
+    {
+        runPlugin(img, tmpfile);
+        // read result and get mean
+        readPIVFile(tmpfile, cent, rad);
+    }
+    
+    /** \brief Run the PIV plugin on the shown image, the vectors are saved in tmpfile.
+     * The plugin works on the current images: only one at a time (see Utils.ijLock) */
+    public void runPlugin(ImagePlus img, String tmpfile)
     {
         IJ.run(img, "iterative PIV(Basic)...", "piv1=32 sw1=64 piv2=16 sw2=32 piv3=0 sw3=0 correlation=0.60 what=[Accept this PIV and output] noise=0.20 threshold=5 c1=3 c2=1 save="+tmpfile+" batch");
 	for ( int j=0; j<3; j++ )
@@ -83,9 +92,6 @@ public class PIV
 		tmp.changes = false;
 		tmp.close();
 	}
-
-        // read result and get mean
-        readPIVFile(tmpfile, cent, rad);
     }
     
     public void writePIVResults(int i, ResultsTable myrt, double scale)
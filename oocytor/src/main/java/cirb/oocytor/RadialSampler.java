@@ -0,0 +1,232 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import ij.gui.Line;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
+import ij.process.ImageProcessor;
+
+/**
+ * \brief Intensity profiles along rays from a center, as given by wide Line.getPixels
+ *
+ * The points of each ray are calculated once for a given geometry (center, radius, angles),
+ * then the profiles of any slice are read directly from its pixels array, without creating 
+ * a Line Roi and a straightened image for each ray. Values are the same as Line.getPixels 
+ * with the same stroke width: each point is the mean of width bilinear samples perpendicular to the ray.
+ *
+ * @author Gaelle Letort
+ */
+public class RadialSampler
+{
+	private final int width;
+	private final float[][] xs;
+	private final float[][] ys;
+	
+	/** 
+	 * @param cx, cy center of the rays
+	 * @param radius length of the rays
+	 * @param angles angle of each ray (radians)
+	 * @param width width of the band around each ray (stroke width of the line)
+	 */
+	public RadialSampler( float cx, float cy, float radius, double[] angles, int width )
+	{
+		this.width = width;
+		xs = new float[ angles.length ][];
+		ys = new float[ angles.length ][];
+		for ( int a = 0; a < angles.length; a++ )
+		{
+			FloatPolygon pts = rayPoints( cx, cy, radius, angles[ a ] );
+			xs[ a ] = ( pts == null ) ? new float[ 0 ] : pts.xpoints;
+			ys[ a ] = ( pts == null ) ? new float[ 0 ] : pts.ypoints;
+		}
+	}
+	
+	/** \brief Angles j*2pi/nang for j=1..nang, accumulated as in the plugins loops */
+	public static double[] angles( int nang )
+	{
+		double[] angles = new double[ nang ];
+		double ang = 0;
+		double dang = 2 * Math.PI / nang;
+		for ( int j = 0; j < nang; j++ )
+		{
+			ang = ang + dang;
+			angles[ j ] = ang;
+		}
+		return angles;
+	}
+	
+	/** \brief Points along one ray, one pixel apart, as straightened by ImageJ for a wide line */
+	public static FloatPolygon rayPoints( float cx, float cy, float radius, double ang )
+	{
+		Line ray = new Line( cx, cy, cx + radius * Math.cos( ang ), cy + radius * Math.sin( ang ) );
+		FloatPolygon ends = ray.getFloatPoints();
+		PolygonRoi line = new PolygonRoi( ends.xpoints, ends.ypoints, 2, Roi.POLYLINE );
+		line.fitSplineForStraightening();
+		if ( line.getNCoordinates() < 2 )
+			return null;
+		FloatPolygon pts = line.getFloatPolygon();
+		if ( pts.xpoints.length != pts.npoints )
+		{
+			float[] x = new float[ pts.npoints ];
+			float[] y = new float[ pts.npoints ];
+			System.arraycopy( pts.xpoints, 0, x, 0, pts.npoints );
+			System.arraycopy( pts.ypoints, 0, y, 0, pts.npoints );
+			pts = new FloatPolygon( x, y );
+		}
+		return pts;
+	}
+	
+	/** \brief Number of rays */
+	public int nAngles()
+	{
+		return xs.length;
+	}
+	
+	/** \brief Number of points along the ray a */
+	public int length( int a )
+	{
+		return xs[ a ].length;
+	}
+	
+	/** \brief Longest ray */
+	public int maxLength()
+	{
+		int max = 0;
+		for ( float[] x : xs )
+			max = Math.max( max, x.length );
+		return max;
+	}
+	
+	/** \brief Fill profile with the values along the ray a, return the number of points */
+	public int sample( ImageProcessor ip, int a, double[] profile )
+	{
+		return sample( ip, xs[ a ], ys[ a ], width, profile );
+	}
+	
+	/** \brief Profiles of all the rays, [angle][position along the ray] */
+	public double[][] sampleAll( ImageProcessor ip )
+	{
+		double[][] profiles = new double[ xs.length ][];
+		for ( int a = 0; a < xs.length; a++ )
+		{
+			profiles[ a ] = new double[ xs[ a ].length ];
+			sample( ip, a, profiles[ a ] );
+		}
+		return profiles;
+	}
+	
+	/** \brief Mean of width bilinear samples perpendicular to the polyline (px, py) at each of its points
+	 * (same as ImageJ Straightener + column average, values stored as float as in the straightened image) */
+	public static int sample( ImageProcessor ip, float[] px, float[] py, int width, double[] profile )
+	{
+		final int n = px.length;
+		if ( n < 2 )
+			return 0;
+		final int w = ip.getWidth();
+		final int h = ip.getHeight();
+		final Object pixels = ip.getPixels();
+		// direct access to the pixels, unless a calibration function changes the values
+		final boolean direct = ip.getCalibrationTable() == null;
+		
+		double x2 = px[ 0 ] - ( px[ 1 ] - px[ 0 ] );
+		double y2 = py[ 0 ] - ( py[ 1 ] - py[ 0 ] );
+		for ( int i = 0; i < n; i++ )
+		{
+			final double x1 = x2;
+			final double y1 = y2;
+			x2 = px[ i ];
+			y2 = py[ i ];
+			double dx = x2 - x1;
+			double dy = y1 - y2;
+			final double length = (float) Math.sqrt( dx*dx + dy*dy );
+			dx /= length;
+			dy /= length;
+			double x = x2 - dy*( width-1 )/2.0;
+			double y = y2 - dx*( width-1 )/2.0;
+			double sum = 0;
+			for ( int k = 0; k < width; k++ )
+			{
+				double val;
+				if ( direct && x >= 0.0 && y >= 0.0 && x < w-1.0 && y < h-1.0 )
+					val = bilinear( pixels, w, x, y );
+				else
+					val = ip.getInterpolatedValue( x, y );
+				sum += (float) val;
+				x += dy;
+				y += dx;
+			}
+			profile[ i ] = sum / width;
+		}
+		return n;
+	}
+	
+	/** \brief Bilinear interpolation inside the image, same calculation as ImageProcessor.getInterpolatedValue */
+	private static double bilinear( Object pixels, int w, double x, double y )
+	{
+		final int xbase = (int) x;
+		final int ybase = (int) y;
+		final double xFraction = x - xbase;
+		final double yFraction = y - ybase;
+		final int ind = ybase*w + xbase;
+		double lowerLeft, lowerRight, upperRight, upperLeft;
+		if ( pixels instanceof byte[] )
+		{
+			final byte[] pix = (byte[]) pixels;
+			lowerLeft = pix[ ind ] & 0xff;
+			lowerRight = pix[ ind+1 ] & 0xff;
+			upperRight = pix[ ind+w+1 ] & 0xff;
+			upperLeft = pix[ ind+w ] & 0xff;
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] pix = (short[]) pixels;
+			lowerLeft = pix[ ind ] & 0xffff;
+			lowerRight = pix[ ind+1 ] & 0xffff;
+			upperRight = pix[ ind+w+1 ] & 0xffff;
+			upperLeft = pix[ ind+w ] & 0xffff;
+		}
+		else
+		{
+			final float[] pix = (float[]) pixels;
+			lowerLeft = pix[ ind ];
+			lowerRight = pix[ ind+1 ];
+			upperRight = pix[ ind+w+1 ];
+			upperLeft = pix[ ind+w ];
+		}
+		final double upperAverage = upperLeft + xFraction * ( upperRight - upperLeft );
+		final double lowerAverage = lowerLeft + xFraction * ( lowerRight - lowerLeft );
+		return lowerAverage + yFraction * ( upperAverage - lowerAverage );
+	}
+}
@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * \brief Intersections of rays from a center with a polygon
+ *
+ * Distances from the center to the contour along a full turn of rays are calculated
+ * in one pass over the polygon edges: each edge is only intersected with the few rays
+ * that cross its angular range, instead of walking along each ray and testing if the point is still inside.
+ *
+ * @author Gaelle Letort
+ */
+public class RayPolygon
+{
+	/** 
+	 * \brief Distance along each ray from (cx, cy) at which it leaves the polygon (first crossed edge)
+	 *
+	 * @param angles angles of the rays (radians), increasing and regularly spaced on a full turn
+	 * @return distances, 0 for all rays if the center is outside the polygon 
+	 */
+	public static double[] exitDistances( FloatPolygon fp, double cx, double cy, double[] angles )
+	{
+		final int nang = angles.length;
+		double[] dist = new double[ nang ];
+		if ( nang == 0 || fp.npoints < 3 || !fp.contains( cx, cy ) )
+			return dist;
+		Arrays.fill( dist, Double.POSITIVE_INFINITY );
+		
+		final double[] dx = new double[ nang ];
+		final double[] dy = new double[ nang ];
+		for ( int a = 0; a < nang; a++ )
+		{
+			dx[ a ] = Math.cos( angles[ a ] );
+			dy[ a ] = Math.sin( angles[ a ] );
+		}
+		final double a0 = angles[ 0 ];
+		final double dang = 2 * Math.PI / nang;
+		
+		double x1 = fp.xpoints[ fp.npoints - 1 ] - cx;
+		double y1 = fp.ypoints[ fp.npoints - 1 ] - cy;
+		double ang1 = Math.atan2( y1, x1 );
+		for ( int p = 0; p < fp.npoints; p++ )
+		{
+			final double x2 = fp.xpoints[ p ] - cx;
+			final double y2 = fp.ypoints[ p ] - cy;
+			final double ang2 = Math.atan2( y2, x2 );
+			final double ex = x2 - x1;
+			final double ey = y2 - y1;
+			if ( ex != 0 || ey != 0 )
+			{
+				// angular range covered by the edge, seen from the center
+				double span = ang2 - ang1;
+				if ( span > Math.PI ) span -= 2 * Math.PI;
+				if ( span < -Math.PI ) span += 2 * Math.PI;
+				int first, last;
+				if ( Math.abs( span ) > Math.PI - 1e-6 )
+				{
+					// edge passing (almost) through the center, can be crossed by any ray
+					first = 0;
+					last = nang - 1;
+				}
+				else
+				{
+					double lo = Math.min( ang1, ang1 + span );
+					double hi = Math.max( ang1, ang1 + span );
+					// one more ray on each side for rounding of the angles
+					first = (int) Math.ceil( ( lo - a0 ) / dang ) - 1;
+					last = (int) Math.floor( ( hi - a0 ) / dang ) + 1;
+				}
+				for ( int k = first; k <= last; k++ )
+				{
+					final int a = Math.floorMod( k, nang );
+					final double denom = dx[ a ] * ey - dy[ a ] * ex;
+					if ( denom == 0 )
+						continue;
+					// position along the edge and along the ray
+					final double s = ( x1 * dy[ a ] - y1 * dx[ a ] ) / denom;
+					if ( s < -1e-9 || s > 1 + 1e-9 )
+						continue;
+					final double t = ( x1 * ey - y1 * ex ) / denom;
+					if ( t >= 0 && t < dist[ a ] )
+						dist[ a ] = t;
+				}
+			}
+			x1 = x2;
+			y1 = y2;
+			ang1 = ang2;
+		}
+		
+		for ( int a = 0; a < nang; a++ )
+			if ( dist[ a ] == Double.POSITIVE_INFINITY )
+				dist[ a ] = 0;
+		return dist;
+	}
+	
+	/** 
+	 * \brief Radius of each contour at each angle: distance from its centroid to its border, [contour][angle]
+	 *
+	 * @param angles angles of the rays (radians), increasing and regularly spaced on a full turn
+	 */
+	public static double[][] radialProfiles( Roi[] rois, double[] angles )
+	{
+		double[][] rads = new double[ rois.length ][];
+		IntStream.range( 0, rois.length ).parallel().forEach( i ->
+		{
+			double[] cent = rois[ i ].getContourCentroid();
+			rads[ i ] = exitDistances( rois[ i ].getFloatPolygon(), cent[ 0 ], cent[ 1 ], angles );
+		});
+		return rads;
+	}
+	
+	/** \brief nang angles regularly spaced on a full turn, from 0 */
+	public static double[] anglesFromZero( int nang )
+	{
+		double[] angles = new double[ nang ];
+		double dang = 2 * Math.PI / nang;
+		for ( int a = 1; a < nang; a++ )
+			angles[ a ] = angles[ a - 1 ] + dang;
+		return angles;
+	}
+	
+	/** \brief Index of the first of n regularly spaced points along the ray of length radius that is after the exit distance */
+	public static int exitIndex( double exit, float radius, int n )
+	{
+		if ( exit <= 0 )
+			return 0;
+		return (int) Math.floor( exit * n / radius ) + 1;
+	}
+}
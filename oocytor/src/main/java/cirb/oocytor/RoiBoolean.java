@@ -0,0 +1,237 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import java.awt.Rectangle;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * \brief Boolean operations between Rois (and, xor, not), without the RoiManager nor an image
+ *
+ * Same geometry as the RoiManager AND/XOR commands (ShapeRoi operations, simplified to polygons when possible),
+ * but working only on copies of the Rois, so that it can be used from several threads.
+ * Cleaned Rois (erased zones removed) and ZP rings are cached by contours and slice, 
+ * the least recently used ones being dropped when the cache is full.
+ * The cache only keeps weak references to the contours, and the cached Rois are never bound to an image.
+ *
+ * @author Gaelle Letort
+ */
+public class RoiBoolean
+{
+	private static final int CACHE_SIZE = 1024;
+	/** \brief Cached value when nothing is erased from the contour, so that the cache doesn't keep the contour itself */
+	private static final Roi NONE = new Roi( 0, 0, 0, 0 );
+	private static final Map<Key, Roi> cache = new LinkedHashMap<Key, Roi>( 64, 0.75f, true )
+	{
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Key, Roi> eldest )
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+	
+	/** \brief Shape copy of the Roi, the Roi itself is not modified */
+	private static ShapeRoi shape( Roi roi )
+	{
+		if ( roi instanceof ShapeRoi ) return (ShapeRoi) roi.clone();
+		return new ShapeRoi( roi );
+	}
+	
+	/** \brief Simplified Roi of the shape, null if empty (as the RoiManager which then removes the selection) */
+	private static Roi result( ShapeRoi res, int position )
+	{
+		Rectangle r = res.getBounds();
+		if ( r.width == 0 && r.height == 0 ) return null;
+		Roi roi = res.trySimplify();
+		roi.setPosition( position );
+		return roi;
+	}
+	
+	/** \brief Intersection of the two Rois, null if they don't overlap */
+	public static Roi and( Roi a, Roi b )
+	{
+		return result( shape(a).and( shape(b) ), a.getPosition() );
+	}
+	
+	/** \brief Intersection of all the Rois, null if empty */
+	public static Roi and( Roi[] rois )
+	{
+		ShapeRoi res = shape( rois[0] );
+		for ( int i = 1; i < rois.length; i++ )
+			res.and( shape(rois[i]) );
+		return result( res, rois[0].getPosition() );
+	}
+	
+	/** \brief Area in only one of the Rois, null if empty */
+	public static Roi xor( Roi a, Roi b )
+	{
+		return result( shape(a).xor( shape(b) ), a.getPosition() );
+	}
+	
+	/** \brief Area of a that is not in b, null if empty */
+	public static Roi not( Roi a, Roi b )
+	{
+		return result( shape(a).not( shape(b) ), a.getPosition() );
+	}
+	
+	/** \brief Delete part of the Roi if it's in the toer Roi area, the Roi itself if they don't overlap */
+	public static Roi clean( Roi in, Roi toer )
+	{
+		if ( and( in, toer ) == null ) return in;
+		return not( in, toer );
+	}
+	
+	/** \brief Remove from the contour the erased Roi of the slice (or the area common to all erased Rois if slice < 0).
+	 * The contour itself if nothing is erased, null if everything is.
+	 * Calculated once by contour and slice: the same Roi is returned each time, copy it before binding it to an image */
+	public static Roi cleaned( Roi cortex, Roi[] er, int slice )
+	{
+		Key key = new Key( cortex, er, slice );
+		Roi res;
+		synchronized ( cache )
+		{
+			res = cache.get( key );
+		}
+		if ( res == null )
+		{
+			// calculate outside of the lock, other threads can use the cache meanwhile
+			res = NONE;
+			if ( slice < 0 )
+			{
+				Roi ander = and( er );
+				if ( ander != null ) res = cleanOrNone( cortex, ander );
+			}
+			else
+			{
+				for ( int i = 0; i < er.length; i++ )
+				{
+					if ( er[i].getPosition() == slice )
+					{
+						res = cleanOrNone( cortex, er[i] );
+						break;
+					}
+				}
+			}
+			// fully erased, nothing to cache
+			if ( res == null ) return null;
+			synchronized ( cache )
+			{
+				Roi other = cache.putIfAbsent( key, res );
+				if ( other != null ) res = other;
+			}
+		}
+		// nothing erased, the contour itself as before
+		if ( res == NONE ) return cortex;
+		return res;
+	}
+	
+	/** \brief Same as clean, but NONE instead of the Roi itself if they don't overlap */
+	private static Roi cleanOrNone( Roi in, Roi toer )
+	{
+		if ( and( in, toer ) == null ) return NONE;
+		return not( in, toer );
+	}
+	
+	/** \brief Area between the inside and outside contours of the ZP, null if empty.
+	 * Calculated once by pair of contours, in any order: the same Roi is returned each time, copy it before binding it to an image */
+	public static Roi ring( Roi in, Roi out )
+	{
+		Key key = new Key( in, out, 0 );
+		Roi res;
+		synchronized ( cache )
+		{
+			res = cache.get( key );
+			// xor is symmetric, already calculated with the contours in the other order
+			if ( res == null ) res = cache.get( new Key( out, in, 0 ) );
+		}
+		if ( res == null )
+		{
+			res = xor( in, out );
+			if ( res == null ) return null;
+			synchronized ( cache )
+			{
+				Roi other = cache.putIfAbsent( key, res );
+				if ( other != null ) res = other;
+			}
+		}
+		return res;
+	}
+	
+	/** \brief Forget all the cached Rois */
+	public static void clearCache()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+		}
+	}
+	
+	/** \brief Cache key: the contour objects (not their content) and the slice.
+	 * Weak references, so that the cache doesn't keep alive the contours (and their image) of closed movies */
+	private static class Key
+	{
+		final WeakReference<Object> first, second;
+		final int slice;
+		final int hash;
+		
+		Key( Object first, Object second, int slice )
+		{
+			this.first = new WeakReference<Object>( first );
+			this.second = new WeakReference<Object>( second );
+			this.slice = slice;
+			hash = 31 * ( 31 * System.identityHashCode( first ) + System.identityHashCode( second ) ) + slice;
+		}
+		
+		@Override
+		public boolean equals( Object o )
+		{
+			if ( o == this ) return true;
+			if ( !( o instanceof Key ) ) return false;
+			Key k = (Key) o;
+			Object f = first.get();
+			Object s = second.get();
+			// collected contours never match again
+			return f != null && s != null && k.first.get() == f && k.second.get() == s && k.slice == slice;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+}
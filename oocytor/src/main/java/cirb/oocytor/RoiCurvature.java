@@ -162,12 +162,21 @@ public class RoiCurvature
         /** \brief Get the curvature of the Roi and write the results in the ResultsTable */
 	public void getCurvature(Roi roi, ResultsTable myrt, double scale, String which, double meanRad)
 	{
-		ImagePlus imp = IJ.getImage();
-		imp.setRoi(roi);
-		IJ.run(imp, "Interpolate", "interval=2 smooth adjust");
-		IJ.run(imp, "Fit Spline", "");
-		IJ.run(imp, "Interpolate", "interval=4 smooth adjust");
-		Roi splined = imp.getRoi();
+		getCurvature(IJ.getImage(), roi, myrt, scale, which, meanRad);
+	}
+
+        /** \brief Same, the Roi being smoothed on the given image instead of the current one */
+	public void getCurvature(ImagePlus imp, Roi roi, ResultsTable myrt, double scale, String which, double meanRad)
+	{
+		Roi splined;
+		synchronized ( Utils.ijLock )
+		{
+			imp.setRoi(roi);
+			IJ.run(imp, "Interpolate", "interval=2 smooth adjust");
+			IJ.run(imp, "Fit Spline", "");
+			IJ.run(imp, "Interpolate", "interval=4 smooth adjust");
+			splined = imp.getRoi();
+		}
 		FloatPolygon poly = splined.getFloatPolygon();
 		curvature(poly, myrt, scale, which, meanRad);        
 	}
@@ -0,0 +1,342 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.process.FloatPolygon;
+import java.awt.Rectangle;
+import java.awt.geom.PathIterator;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * \brief Pixels inside a Roi, rasterised once in a bitset over its bounding box
+ *
+ * Same pixels as Roi.contains(x,y), but calculated row by row from the crossings of the contour 
+ * (Roi.contains is only called for pixels close to the contour), and read with a bit lookup.
+ * Each row is also stored as runs of inside pixels, so that the measures can loop only on the inside pixels.
+ * Masks are cached by Roi and slice, the least recently used ones being dropped when the cache is full,
+ * so that several movies measured at the same time share it.
+ * The cache keeps only weak references to the Rois: pass the shared Rois (contours, cleaned Rois), 
+ * not copies made for one frame, to get the cached masks.
+ *
+ * @author Gaelle Letort
+ */
+public class RoiMask
+{
+	private static final int CACHE_SIZE = 256;
+	private static final Map<Key, RoiMask> cache = new LinkedHashMap<Key, RoiMask>( 64, 0.75f, true )
+	{
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Key, RoiMask> eldest )
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+	
+	private final int x0, y0, width, height;
+	private final int wordsPerRow;
+	private final long[] bits;
+	private final int[][] runs;
+	private final int count;
+	
+	/** \brief Mask of the Roi, calculated only the first time it's asked for this Roi object and slice */
+	public static RoiMask get( Roi roi, int slice )
+	{
+		Key key = new Key( roi, slice );
+		synchronized ( cache )
+		{
+			RoiMask mask = cache.get( key );
+			if ( mask != null )
+				return mask;
+		}
+		// rasterise outside of the lock, other threads can use the cache meanwhile
+		RoiMask mask = new RoiMask( roi );
+		synchronized ( cache )
+		{
+			RoiMask other = cache.putIfAbsent( key, mask );
+			return ( other != null ) ? other : mask;
+		}
+	}
+	
+	/** \brief Forget all the masks */
+	public static void clearCache()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+		}
+	}
+	
+	public RoiMask( Roi roi )
+	{
+		// one more pixel around to be sure to get all the pixels of Roi.contains
+		Rectangle r = roi.getBounds();
+		x0 = r.x - 1;
+		y0 = r.y - 1;
+		width = r.width + 2;
+		height = r.height + 2;
+		wordsPerRow = ( width + 63 ) >> 6;
+		bits = new long[ wordsPerRow * height ];
+		
+		if ( roi.getType() == Roi.RECTANGLE && roi.getCornerDiameter() == 0 )
+		{
+			for ( int y = r.y; y < r.y + r.height; y++ )
+				for ( int x = r.x; x < r.x + r.width; x++ )
+					set( x, y );
+		}
+		else if ( ( roi instanceof PolygonRoi || roi instanceof ShapeRoi || roi instanceof OvalRoi ) && roi.isArea() )
+			rasterise( roi );
+		else
+		{
+			for ( int y = y0; y < y0 + height; y++ )
+				for ( int x = x0; x < x0 + width; x++ )
+					if ( roi.contains( x, y ) ) set( x, y );
+		}
+		
+		runs = new int[ height ][];
+		int n = 0;
+		int[] row = new int[ 16 ];
+		for ( int j = 0; j < height; j++ )
+		{
+			int nr = 0;
+			int x = x0;
+			while ( x < x0 + width )
+			{
+				if ( !get( x, j ) ) { x++; continue; }
+				int start = x;
+				while ( x < x0 + width && get( x, j ) ) x++;
+				if ( nr + 2 > row.length ) row = Arrays.copyOf( row, 2 * row.length );
+				row[ nr++ ] = start;
+				row[ nr++ ] = x;
+				n += x - start;
+			}
+			runs[ j ] = Arrays.copyOf( row, nr );
+		}
+		count = n;
+	}
+	
+	/** \brief Fill the inside pixels with the parity of the contour crossings on each row, 
+	 * and check the pixels close to a crossing with Roi.contains */
+	private void rasterise( Roi roi )
+	{
+		float[][] edges = contourEdges( roi );
+		float[] ex1 = edges[ 0 ], ey1 = edges[ 1 ], ex2 = edges[ 2 ], ey2 = edges[ 3 ];
+		int ne = ex1.length;
+		double[] cross = new double[ Math.max( ne, 2 ) ];
+		for ( int y = y0; y < y0 + height; y++ )
+		{
+			double yc = y + 0.5;
+			int nc = 0;
+			for ( int e = 0; e < ne; e++ )
+			{
+				double yi = ey1[ e ];
+				double yj = ey2[ e ];
+				if ( ( yi >= yc ) != ( yj >= yc ) )
+					cross[ nc++ ] = ( ex2[ e ] - ex1[ e ] ) * ( yc - yi ) / ( yj - yi ) + ex1[ e ];
+			}
+			Arrays.sort( cross, 0, nc );
+			
+			// inside pixels between pairs of crossings
+			int k = 0;
+			for ( int x = x0; x < x0 + width; x++ )
+			{
+				double xc = x + 0.5;
+				while ( k < nc && cross[ k ] < xc ) k++;
+				if ( ( k & 1 ) == 1 ) set( x, y );
+			}
+			
+			// close to the contour, the exact test decides
+			for ( int c = 0; c < nc; c++ )
+			{
+				int xm = (int) Math.floor( cross[ c ] );
+				for ( int x = Math.max( xm - 2, x0 ); x <= Math.min( xm + 2, x0 + width - 1 ); x++ )
+				{
+					if ( roi.contains( x, y ) ) set( x, y );
+					else clear( x, y );
+				}
+			}
+		}
+	}
+	
+	/** \brief All the edges (x1, y1, x2, y2) of the contour of the Roi, with all the sub-paths (holes) of a ShapeRoi */
+	private static float[][] contourEdges( Roi roi )
+	{
+		if ( roi instanceof ShapeRoi )
+		{
+			float[] seg = new float[ 6 ];
+			float[][] edges = new float[ 4 ][ 64 ];
+			int ne = 0;
+			float xb = (float) roi.getXBase();
+			float yb = (float) roi.getYBase();
+			float xs = 0, ys = 0, xp = 0, yp = 0;
+			PathIterator it = ( (ShapeRoi) roi ).getShape().getPathIterator( null, 0.05 );
+			while ( !it.isDone() )
+			{
+				int type = it.currentSegment( seg );
+				float xn = seg[ 0 ] + xb;
+				float yn = seg[ 1 ] + yb;
+				if ( type == PathIterator.SEG_MOVETO )
+				{
+					xs = xn;
+					ys = yn;
+				}
+				else
+				{
+					if ( type == PathIterator.SEG_CLOSE )
+					{
+						xn = xs;
+						yn = ys;
+					}
+					if ( ne == edges[ 0 ].length )
+						for ( int d = 0; d < 4; d++ ) edges[ d ] = Arrays.copyOf( edges[ d ], 2 * ne );
+					edges[ 0 ][ ne ] = xp;
+					edges[ 1 ][ ne ] = yp;
+					edges[ 2 ][ ne ] = xn;
+					edges[ 3 ][ ne ] = yn;
+					ne++;
+				}
+				xp = xn;
+				yp = yn;
+				it.next();
+			}
+			for ( int d = 0; d < 4; d++ ) edges[ d ] = Arrays.copyOf( edges[ d ], ne );
+			return edges;
+		}
+		
+		FloatPolygon fp = roi.getFloatPolygon();
+		int np = fp.npoints;
+		float[][] edges = new float[ 4 ][ np ];
+		for ( int i = 0, j = np - 1; i < np; j = i++ )
+		{
+			edges[ 0 ][ i ] = fp.xpoints[ i ];
+			edges[ 1 ][ i ] = fp.ypoints[ i ];
+			edges[ 2 ][ i ] = fp.xpoints[ j ];
+			edges[ 3 ][ i ] = fp.ypoints[ j ];
+		}
+		return edges;
+	}
+	
+	private void set( int x, int y )
+	{
+		int dx = x - x0;
+		bits[ ( y - y0 ) * wordsPerRow + ( dx >> 6 ) ] |= 1L << ( dx & 63 );
+	}
+	
+	private void clear( int x, int y )
+	{
+		int dx = x - x0;
+		bits[ ( y - y0 ) * wordsPerRow + ( dx >> 6 ) ] &= ~( 1L << ( dx & 63 ) );
+	}
+	
+	/** \brief x in image coordinates, j row of the mask */
+	private boolean get( int x, int j )
+	{
+		int dx = x - x0;
+		return ( bits[ j * wordsPerRow + ( dx >> 6 ) ] & ( 1L << ( dx & 63 ) ) ) != 0;
+	}
+	
+	/** \brief Same as Roi.contains(x, y) */
+	public boolean contains( int x, int y )
+	{
+		int dx = x - x0;
+		int dy = y - y0;
+		if ( dx < 0 || dy < 0 || dx >= width || dy >= height )
+			return false;
+		return ( bits[ dy * wordsPerRow + ( dx >> 6 ) ] & ( 1L << ( dx & 63 ) ) ) != 0;
+	}
+	
+	/** \brief Inside pixels of the image row y, as pairs of (first x, last x + 1) */
+	public int[] runs( int y )
+	{
+		int dy = y - y0;
+		if ( dy < 0 || dy >= height )
+			return new int[ 0 ];
+		return runs[ dy ];
+	}
+	
+	/** \brief First image row of the mask */
+	public int firstRow()
+	{
+		return y0;
+	}
+	
+	/** \brief Last image row of the mask + 1 */
+	public int endRow()
+	{
+		return y0 + height;
+	}
+	
+	/** \brief Number of inside pixels */
+	public int getCount()
+	{
+		return count;
+	}
+	
+	/** \brief Cache key: the Roi object itself (not Roi.equals) and the slice.
+	 * Weak reference, so that the cache doesn't keep alive the Roi and the image it is bound to */
+	private static class Key
+	{
+		final WeakReference<Roi> roi;
+		final int slice;
+		final int hash;
+		
+		Key( Roi roi, int slice )
+		{
+			this.roi = new WeakReference<Roi>( roi );
+			this.slice = slice;
+			hash = 31 * System.identityHashCode( roi ) + slice;
+		}
+		
+		@Override
+		public boolean equals( Object o )
+		{
+			if ( o == this ) return true;
+			if ( !( o instanceof Key ) ) return false;
+			Roi r = roi.get();
+			// a collected Roi never matches again
+			return r != null && ( (Key) o ).roi.get() == r && ( (Key) o ).slice == slice;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+}
@@ -36,13 +36,14 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.List;
 
-import org.apposed.appose.Appose;
-import org.apposed.appose.Environment;
 import org.apposed.appose.NDArray;
 import org.apposed.appose.Service;
 import org.apposed.appose.Service.Task;
@@ -50,9 +51,13 @@ import org.apposed.appose.Service.TaskStatus;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.WaitForUserDialog;
-import ij.plugin.ImageCalculator;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
 import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.appose.NDArrays;
 import net.imglib2.appose.ShmImg;
 import net.imglib2.img.ImagePlusAdapter;
@@ -60,68 +65,101 @@ import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
 
 public class RunUNet 
 {
 	private String script_name = "cortex_detector.py";
+	private boolean use_cache = true; // reuse the masks already calculated for the same input and networks
+	private boolean rethrow = false; // give the errors to the caller instead of showing them
 	
 	public RunUNet( String script )
 	{
 		script_name = script;
 	}
 	
+	/** \brief Use or not the masks cache (see MaskCache) */
+	public void setCache( boolean cache )
+	{
+		use_cache = cache;
+	}
+	
+	/** \brief In pipeline or batch mode, errors of the networks are thrown to the caller (as RuntimeException) 
+	 * instead of being shown in a dialog that blocks until it is closed */
+	public void setRethrow( boolean rethrow )
+	{
+		this.rethrow = rethrow;
+	}
+	
+	public boolean useCache()
+	{
+		return use_cache;
+	}
+	
+	public String getScriptName()
+	{
+		return script_name;
+	}
+	
 	/**
-	 * Prepare the python environment and initialize nnInteractive to the active image
+	 * Run the network on the image, in the python service kept alive between calls
 	 */
 	public < T extends RealType< T > & NativeType< T > > ImagePlus process( ImagePlus resized, String model_path, int nfeat, boolean standardize, boolean debug )
 	{
-		
 		final ImgPlus< T > img = ImagePlusAdapter.wrapImgPlus( resized );
+		final Img< T > mask = predict( img, Arrays.asList( model_path ), nfeat, standardize, true, debug );
+		if ( mask == null )
+			return null;
+		return ImageJFunctions.wrap( mask, "mask" );
+	}
+	
+	/**
+	 * Run all the networks on the image in one python task, and return the output still in shared memory.
+	 * The image is sent only once. If average, the output is the mean of the networks masks, 
+	 * else the masks of each network are stacked along the last dimension, in the order of model_paths.
+	 */
+	public < T extends RealType< T > & NativeType< T > > ShmImg< T > predict( RandomAccessibleInterval< ? > img, List< String > model_paths, int nfeat, boolean standardize, boolean average, boolean debug )
+	{
+		return predict( img, model_paths, nfeat, standardize, average, debug, new ArrayList< Integer >() );
+	}
+	
+	/**
+	 * Run all the networks as predict, the slices in row_slices being single images of a batch:
+	 * they are normalised row by row, as a single image sent alone.
+	 */
+	public < T extends RealType< T > & NativeType< T > > ShmImg< T > predict( RandomAccessibleInterval< ? > img, List< String > model_paths, int nfeat, boolean standardize, boolean average, boolean debug, List< Integer > row_slices )
+	{
 		final String script = Utils.getScript( this.getClass().getResource( script_name ) );
 		
 		final Map< String, Object > inputs = new HashMap<>();
 		inputs.put( "image", NDArrays.asNDArray( img ) );
-		inputs.put( "model_path", model_path );
+		inputs.put( "model_paths", model_paths );
+		inputs.put( "average", average );
 		inputs.put( "model_size", 256 );
 		inputs.put( "batch_size", 30 );
 		inputs.put( "nfeatures", nfeat );
 		inputs.put( "standardize", standardize );
+		inputs.put( "row_slices", row_slices );
 		inputs.put( "debug", debug ); // to catch more messages
 		
-		IJ.log( "Downloading/Installing the environment if necessary..." );
 		// Check if cuda or not
 		String os = System.getProperty("os.name").toLowerCase();
         boolean isGpuPlatform = os.contains("linux") || os.contains("win");
         String envName = isGpuPlatform ? "cuda" : "default";
 		
-        Environment env = null;
-		try {
-			env = Appose // the builder
-					.pixi( this.getClass().getResource("pixi.toml") ) // we chose pixi as the environment manager
-					.subscribeProgress( Utils::showProgress ) // report progress visually
-					.subscribeOutput( Utils::showProgress ) // report output visually
-					.subscribeError( IJ::log ) // log problems
-			        .environment( envName )  // choose env based on OS (to get cuda or not)
-					.build();
-		} 
-		catch (Exception e) 
-		{
-			IJ.error( "Error in creating/initializing the python environment: "+e.toString() );
-			e.printStackTrace();
-		} // create the environment
-		Utils.hideProgress();
-
-		
-		/* Create a service that will run the Python script*/
-		Service nnservice = env.python();
+		/* Get the service that runs the Python script, started only once by run */
+		Service nnservice = ServicePool.get( this.getClass().getResource("pixi.toml"), envName, script_name,
+				// Import all that depends on numpy for Windows
+				"import os\n"
+				+ "import numpy as np\n"
+				+ "import keras\n"
+				+ "import tensorflow as tf\n" );
+		if ( nnservice == null )
+			return null;
 		try
 		{
-			// Import all that depends on numpy for Windows
-			nnservice.init("import os\n"
-					+ "import numpy as np\n"
-					+ "import keras\n"
-					+ "import tensorflow as tf\n");
-		
 			Task task = nnservice.task( script, inputs );
 			
 			// Start the script, and return to Java immediately.
@@ -145,16 +183,19 @@ public class RunUNet
 			
 			// Verify that it worked.
 			if ( task.status != TaskStatus.COMPLETE )
+			{
+				// the python process may be in a bad state, restart it next time
+				ServicePool.discard( envName, script_name );
 				throw new RuntimeException( "Python script failed with error: " + task.error );
+			}
 			
 			final NDArray maskArr = ( NDArray ) task.outputs.get( "mask" );
-			final Img< T > mask = new ShmImg<>( maskArr );
-			final ImagePlus impmask = ImageJFunctions.wrap( mask, "mask" );
-			nnservice.close();
-			return impmask;
+			return new ShmImg<>( maskArr );
 		}
 		catch ( Exception e)
 		{
+			if ( rethrow )
+				throw ( e instanceof RuntimeException ) ? (RuntimeException) e : new RuntimeException( e );
 			IJ.error( "" + e );
 		}
 		return null;
@@ -186,50 +227,142 @@ public class RunUNet
 	        }
 	    }
 	
+    /** \brief Resize each slice to size x size (bilinear, averaging) and convert it to 8-bit, in parallel.
+     * Same result as "Size..." then "8-bit" on a copy, but written directly in a shared memory image 
+     * (16 and 32-bits images are scaled with the display range of imp) 
+     */
+    public ShmImg< UnsignedByteType > prepareInput( ImagePlus imp, int size )
+    {
+    	final ImageStack stack = imp.getStack();
+    	final int nslices = stack.getSize();
+    	final double min = imp.getDisplayRangeMin();
+    	final double max = imp.getDisplayRangeMax();
+    	// single image stays 2D as the ImagePlus wrapping did
+    	final ShmImg< UnsignedByteType > resized = ( nslices > 1 ) ? new ShmImg<>( new UnsignedByteType(), size, size, nslices ) : new ShmImg<>( new UnsignedByteType(), size, size );
+    	
+    	// virtual stacks are read from the disk one slice at a time
+    	IntStream slices = IntStream.range( 0, nslices );
+    	if ( !stack.isVirtual() )
+    		slices = slices.parallel();
+    	slices.forEach( z ->
+    	{
+    		final byte[] pixels = resizeSlice( stack.getProcessor( z+1 ), size, min, max );
+    		final RandomAccessibleInterval< UnsignedByteType > plane = ( nslices > 1 ) ? Views.hyperSlice( resized, 2, z ) : resized;
+    		final Cursor< UnsignedByteType > cursor = Views.flatIterable( plane ).cursor();
+    		for ( int i = 0; i < pixels.length; i++ )
+    			cursor.next().set( pixels[ i ] & 0xff );
+    	} );
+    	return resized;
+    }
+    
+    /** \brief Resize and convert to 8-bit each slice as prepareInput, but keep them in a 8-bit stack */
+    public ImageStack resizeSlices( ImagePlus imp, int size )
+    {
+    	final ImageStack stack = imp.getStack();
+    	final int nslices = stack.getSize();
+    	final double min = imp.getDisplayRangeMin();
+    	final double max = imp.getDisplayRangeMax();
+    	final byte[][] planes = new byte[ nslices ][];
+    	IntStream slices = IntStream.range( 0, nslices );
+    	if ( !stack.isVirtual() )
+    		slices = slices.parallel();
+    	slices.forEach( z -> planes[ z ] = resizeSlice( stack.getProcessor( z+1 ), size, min, max ) );
+    	
+    	final ImageStack resized = new ImageStack( size, size );
+    	for ( byte[] pixels : planes )
+    		resized.addSlice( "", pixels );
+    	return resized;
+    }
+    
+    /** \brief Bilinear resize (with averaging) of one slice, scaled to 8-bit with the display range min, max */
+    private byte[] resizeSlice( ImageProcessor ip, int size, double min, double max )
+    {
+    	ip.setInterpolationMethod( ImageProcessor.BILINEAR );
+    	ImageProcessor small = ip.resize( size, size, true );
+    	if ( !( small instanceof ByteProcessor ) )
+    	{
+    		small.setMinAndMax( min, max );
+    		small = small.convertToByte( true );
+    	}
+    	return (byte[]) small.getPixels();
+    }
+	
     /** \brief run all the networks, and take the average result */
     public ImagePlus runUnet(ImagePlus imp, String model_dir, int nfeat, boolean standardize, boolean show, boolean debug )
     {
-    	// resize the image to the network training size
-	    IJ.run(imp, "Select None", "");
-		ImagePlus resized = imp.duplicate();
-		IJ.run(resized, "Size...", "width=256 height=256 depth="+(imp.getNSlices())+" average interpolation=Bilinear");
-	    IJ.run(resized, "8-bit", "");
-        
-        if (show) resized.show();
-        ImagePlus res = null;
-        ImageCalculator calc = new ImageCalculator();
+    	// resize the image to the network training size, directly in shared memory
+	    imp.deleteRoi();
+		ShmImg< UnsignedByteType > resized = prepareInput( imp, 256 );
+		ImagePlus shown = null;
+        if (show) 
+        {
+        	shown = ImageJFunctions.wrap( resized, "resized" );
+        	shown.show();
+        }
+        ImagePlus res = runUnet( resized, model_dir, nfeat, standardize, debug );
+        if ( shown != null )
+        {
+        	shown.changes = false;
+        	shown.close();
+        }
+        return res;
+    }
+    
+    /** \brief run all the networks on an already resized image, and take the average result.
+     * The resized image is released at the end */
+    public ImagePlus runUnet( ShmImg< UnsignedByteType > resized, String model_dir, int nfeat, boolean standardize, boolean debug )
+    {
         List<Path> networks;
 		try {
 			networks = findModelFolders( model_dir );
 		} catch (IOException e) 
 		{
-			IJ.error( "No model(s) found in "+model_dir );
 			e.printStackTrace();
-			return null;
+			networks = new ArrayList< Path >();
 		}
+        if ( networks.isEmpty() )
+        {
+        	resized.ndArray().close();
+        	if ( rethrow )
+        		throw new RuntimeException( "No model(s) found in "+model_dir );
+        	IJ.error( "No model(s) found in "+model_dir );
+        	return null;
+        }
         IJ.showStatus("Segment oocyte with "+networks.size()+" neural networks...");
         
-        for ( int i = 0; i < networks.size(); i++ )
+        List<String> model_paths = networks.stream().map( net -> net.toAbsolutePath().toString() ).collect( Collectors.toList() );
+        
+        // already segmented with the same networks and parameters
+        String key = null;
+        if ( use_cache )
         {
-        	IJ.showProgress( i, networks.size() );
-        	Path model_path = (networks.get(i)).toAbsolutePath();
-        	ImagePlus bin = process( resized, model_path.toString(), nfeat, standardize, debug );
-
-        	if ( i >= 1) calc.run("add 32-bit stack", res, bin);
-            else res = (ImagePlus) (bin.duplicate());
-              //res.show();
-              //new WaitForUserDialog("test").show();
-              bin.changes=false;
-              bin.close();
+        	key = MaskCache.key( script_name, model_paths, nfeat, standardize, resized.dimensionsAsLongArray(), Arrays.asList( resized ) );
+        	ImagePlus cached = MaskCache.load( key );
+        	if ( cached != null )
+        	{
+        		IJ.log( "Networks output read from the cache" );
+        		resized.ndArray().close();
+        		return cached;
+        	}
         }
-        resized.changes = false;
-        resized.close();
-        IJ.run(res, "Divide...", "value="+networks.size()+" stack");
-        res.resetDisplayRange();
-       // res.show();
-        //new WaitForUserDialog("test").show();
-        IJ.run(res, "8-bit", "");
         
+        // all the networks in one task, python sends back their average
+        ShmImg< FloatType > bin;
+        try
+        {
+        	bin = predict( resized, model_paths, nfeat, standardize, true, debug );
+        }
+        finally
+        {
+        	resized.ndArray().close();
+        }
+        if ( bin == null )
+        	return null;
+
+        // 8-bit scaled on the first slice range, copied directly from the shared memory, then released
+        ImagePlus res = EnsembleMask.toByte( bin, "mask" );
+        bin.ndArray().close();
+        MaskCache.save( key, res );
         return res;
     }
 	
@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import ij.process.FloatPolygon;
+
+/**
+ * \brief Nearest edge of a closed polygon, with a uniform grid over its edges
+ *
+ * Each edge is stored in all the grid cells that its bounding box covers.
+ * The distance from a point is looked for in the cells around it, ring by ring, 
+ * until no further cell can contain a closer edge, so only the edges near the point are tested.
+ * Distances are true point to segment distances, not only to the vertices.
+ *
+ * @author Gaelle Letort
+ */
+public class SegmentIndex
+{
+	private final float[] xs, ys;
+	private final int nedges;
+	private final double x0, y0, cell;
+	private final int nx, ny;
+	private final int[][] cells;
+	
+	public SegmentIndex( FloatPolygon poly )
+	{
+		xs = poly.xpoints;
+		ys = poly.ypoints;
+		nedges = poly.npoints;
+		
+		double xmin = Double.MAX_VALUE, ymin = Double.MAX_VALUE;
+		double xmax = -Double.MAX_VALUE, ymax = -Double.MAX_VALUE;
+		double len = 0;
+		for ( int i = 0; i < nedges; i++ )
+		{
+			xmin = Math.min( xmin, xs[i] );
+			xmax = Math.max( xmax, xs[i] );
+			ymin = Math.min( ymin, ys[i] );
+			ymax = Math.max( ymax, ys[i] );
+			int j = next(i);
+			len += Math.hypot( xs[j]-xs[i], ys[j]-ys[i] );
+		}
+		// cells of a few edges, but not too small compared to the polygon size so that searches stay short
+		double w = Math.max( xmax-xmin, 1 );
+		double h = Math.max( ymax-ymin, 1 );
+		double size = Math.sqrt( w*h/Math.max(nedges, 1) );
+		if ( nedges > 0 ) size = Math.max( size, 2*len/nedges );
+		cell = Math.max( size, 1 );
+		x0 = ( nedges > 0 ) ? xmin : 0;
+		y0 = ( nedges > 0 ) ? ymin : 0;
+		nx = (int) ( w/cell ) + 1;
+		ny = (int) ( h/cell ) + 1;
+		
+		// count then fill the edges of each cell
+		int[] counts = new int[nx*ny];
+		int[][] lists = null;
+		for ( int pass = 0; pass < 2; pass++ )
+		{
+			for ( int i = 0; i < nedges; i++ )
+			{
+				int j = next(i);
+				int cx0 = cellX( Math.min(xs[i], xs[j]) );
+				int cx1 = cellX( Math.max(xs[i], xs[j]) );
+				int cy0 = cellY( Math.min(ys[i], ys[j]) );
+				int cy1 = cellY( Math.max(ys[i], ys[j]) );
+				for ( int cy = cy0; cy <= cy1; cy++ )
+					for ( int cx = cx0; cx <= cx1; cx++ )
+					{
+						int c = cy*nx + cx;
+						if ( pass == 0 ) counts[c]++;
+						else lists[c][--counts[c]] = i;
+					}
+			}
+			if ( pass == 0 )
+			{
+				lists = new int[nx*ny][];
+				for ( int c = 0; c < counts.length; c++ )
+					lists[c] = new int[counts[c]];
+			}
+		}
+		cells = lists;
+	}
+	
+	/** \brief Distance from the point to the closest edge of the polygon (10000 if empty polygon) */
+	public double distance( double x, double y )
+	{
+		if ( nedges == 0 ) return 10000;
+		// cell of the point, can be outside of the grid
+		int px = (int) Math.floor( (x-x0)/cell );
+		int py = (int) Math.floor( (y-y0)/cell );
+		int maxring = Math.max( Math.max( px, nx-1-px ), Math.max( py, ny-1-py ) );
+		
+		double best = Double.MAX_VALUE;
+		for ( int ring = 0; ring <= maxring; ring++ )
+		{
+			for ( int cy = py-ring; cy <= py+ring; cy++ )
+			{
+				if ( cy < 0 || cy >= ny ) continue;
+				// only the border of the ring
+				int step = ( cy == py-ring || cy == py+ring ) ? 1 : 2*ring;
+				for ( int cx = px-ring; cx <= px+ring; cx += Math.max(step, 1) )
+				{
+					if ( cx < 0 || cx >= nx ) continue;
+					for ( int e : cells[cy*nx + cx] )
+					{
+						int j = next(e);
+						double dist = segmentDistance( x, y, xs[e], ys[e], xs[j], ys[j] );
+						if ( dist < best ) best = dist;
+					}
+				}
+			}
+			// cells of the next rings are all further than that
+			if ( best <= ring*cell ) break;
+		}
+		return best;
+	}
+	
+	/** \brief Distance between point (x,y) and the segment (x1,y1)-(x2,y2) */
+	public static double segmentDistance( double x, double y, double x1, double y1, double x2, double y2 )
+	{
+		double dx = x2 - x1;
+		double dy = y2 - y1;
+		double len2 = dx*dx + dy*dy;
+		double t = 0;
+		if ( len2 > 0 ) t = Math.max( 0, Math.min( 1, ((x-x1)*dx + (y-y1)*dy)/len2 ) );
+		return Math.hypot( x - (x1 + t*dx), y - (y1 + t*dy) );
+	}
+	
+	private int next( int i )
+	{
+		return ( i + 1 < nedges ) ? i+1 : 0;
+	}
+	
+	private int cellX( double x )
+	{
+		return Math.min( Math.max( (int) ((x-x0)/cell), 0 ), nx-1 );
+	}
+	
+	private int cellY( double y )
+	{
+		return Math.min( Math.max( (int) ((y-y0)/cell), 0 ), ny-1 );
+	}
+}
@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apposed.appose.Appose;
+import org.apposed.appose.Environment;
+import org.apposed.appose.Service;
+
+import ij.IJ;
+
+/**
+ * \brief Long-lived python services, shared by all the images of a plugin run
+ *
+ * Services are started lazily the first time they are asked for, one by (environment, script),
+ * so that python/tensorflow and the loaded models stay in memory between the images.
+ * They are all stopped by closeAll() at the end of the plugin run.
+ *
+ * @author Gaelle Letort
+ */
+public class ServicePool
+{
+	private static final Map< String, Environment > environments = new HashMap<>();
+	private static final Map< String, Service > services = new HashMap<>();
+	private static boolean hooked = false;
+
+	/** \brief Return the running service for this environment and script, start it if necessary
+	 *
+	 * @param pixi pixi.toml file describing the environments
+	 * @param envName name of the pixi environment to use
+	 * @param script name of the python script that will be run by the service
+	 * @param init imports to do once when the service starts
+	 * @return the service, null if the environment could not be built
+	 */
+	public static synchronized Service get( URL pixi, String envName, String script, String init )
+	{
+		String key = envName + "/" + script;
+		Service service = services.get( key );
+		if ( service != null )
+			return service;
+
+		Environment env = environments.get( envName );
+		if ( env == null )
+		{
+			IJ.log( "Downloading/Installing the environment if necessary..." );
+			try 
+			{
+				env = Appose // the builder
+						.pixi( pixi ) // we chose pixi as the environment manager
+						.subscribeProgress( Utils::showProgress ) // report progress visually
+						.subscribeOutput( Utils::showProgress ) // report output visually
+						.subscribeError( IJ::log ) // log problems
+				        .environment( envName )  // choose env based on OS (to get cuda or not)
+						.build();
+			} 
+			catch (Exception e) 
+			{
+				IJ.error( "Error in creating/initializing the python environment: "+e.toString() );
+				e.printStackTrace();
+				return null;
+			}
+			finally
+			{
+				Utils.hideProgress();
+			}
+			environments.put( envName, env );
+		}
+
+		/* Create a service that will run the Python script*/
+		service = env.python();
+		service.init( init );
+		services.put( key, service );
+
+		// don't leave python processes behind if the plugin is interrupted
+		if ( !hooked )
+		{
+			Runtime.getRuntime().addShutdownHook( new Thread( ServicePool::closeAll ) );
+			hooked = true;
+		}
+		return service;
+	}
+
+	/** \brief Stop and forget the service of this environment and script (e.g. after it crashed) */
+	public static synchronized void discard( String envName, String script )
+	{
+		Service service = services.remove( envName + "/" + script );
+		if ( service != null )
+			service.close();
+	}
+
+	/** \brief Stop all the running services, to call at the end of the plugin run */
+	public static synchronized void closeAll()
+	{
+		for ( Service service : services.values() )
+		{
+			try
+			{
+				service.close();
+			}
+			catch ( Exception e )
+			{
+				e.printStackTrace();
+			}
+		}
+		services.clear();
+	}
+}
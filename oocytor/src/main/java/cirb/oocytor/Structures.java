@@ -84,6 +84,8 @@ public class Structures
 		int ymax = (int) (cent[1] + 1.1*rad);
 		if ( ymax > imp.getHeight() ) ymax = imp.getHeight();
 		
+		RoiMask inroi = RoiMask.get(roi, roi.getPosition());
+		RoiMask inonly = RoiMask.get(only, only.getPosition());
 		Vector dist = new Vector();
 		double dmean = 0;
 		int n = 0;
@@ -92,12 +94,12 @@ public class Structures
 			for ( int py = ymin; py < ymax; py=py+3 )
 			{
 				// is inside cortex
-				if ( roi.contains(px, py) && (only.contains(px, py) ) )
+				if ( inroi.contains(px, py) && (inonly.contains(px, py) ) )
 				{
 					// >0: is a structure
 					if ( imp.getPixel(px, py)[0] > 0 )
 					{
-						double d = getNormedDistance( cent, roi, only, px, py );
+						double d = getNormedDistance( cent, inroi, inonly, px, py );
 						if ( d > 0 ) 
 						{
 							dist.add(d);
@@ -123,7 +125,7 @@ public class Structures
 	}
 	
     /** \brief Return the distance to center of the point (x,y) normalised by the radius of the Roi in the same radius */
-	public double getNormedDistance( double[] cent, Roi roi, Roi only, int x, int y )
+	public double getNormedDistance( double[] cent, RoiMask roi, RoiMask only, int x, int y )
 	{
 		double dx = (double) x - cent[0];
 		double dy = (double) y - cent[1];
@@ -0,0 +1,254 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.appose.ShmImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * \brief Gather the slices of several images in full batches for the networks
+ *
+ * Images are resized when they are added, and sent to python once enough slices are waiting.
+ * The batch masks are then split back by image (in the order they were added) and given to the receiver,
+ * with the same 8-bit scaling as RunUNet.runUnet on each image alone.
+ * An image is never split in two batches: an image longer than the batch is sent alone.
+ *
+ * @author Gaelle Letort
+ */
+public class UNetBatcher
+{
+	private RunUNet runet;
+	private List< String > model_paths = new ArrayList< String >();
+	private int nfeat;
+	private boolean standardize;
+	private boolean debug;
+	private int batch_size = 30;
+	private int size = 256;
+	private boolean row_singles = false; // normalise the single images row by row, as when they are sent alone
+	private BiConsumer< String, ImagePlus > receiver;
+	
+	// waiting images, their input (null if the mask is cached), cache key and cached mask
+	private List< String > names = new ArrayList< String >();
+	private List< ImageStack > inputs = new ArrayList< ImageStack >();
+	private List< String > keys = new ArrayList< String >();
+	private List< ImagePlus > cached = new ArrayList< ImagePlus >();
+	private int nwaiting = 0; // nb of slices to segment
+
+	/** 
+	 * @param script python script of the networks
+	 * @param model_dir folder containing all the networks to average
+	 * @param batch nb of slices to gather before to run the networks
+	 * @param receiver called with the name of the image and its mask (null if failed)
+	 */
+	public UNetBatcher( String script, String model_dir, int nfeat, boolean standardize, boolean debug, int batch, BiConsumer< String, ImagePlus > receiver )
+	{
+		runet = new RunUNet( script );
+		// a failed batch is logged, its images get a null mask
+		runet.setRethrow( true );
+		this.nfeat = nfeat;
+		this.standardize = standardize;
+		this.debug = debug;
+		this.batch_size = batch;
+		this.receiver = receiver;
+		try 
+		{
+			List< Path > networks = RunUNet.findModelFolders( model_dir );
+			model_paths = networks.stream().map( net -> net.toAbsolutePath().toString() ).collect( Collectors.toList() );
+		} 
+		catch ( IOException e ) 
+		{
+			e.printStackTrace();
+		}
+		if ( model_paths.isEmpty() )
+			IJ.error( "No model(s) found in "+model_dir );
+	}
+	
+	/** \brief Use or not the masks cache (see MaskCache) */
+	public void setCache( boolean cache )
+	{
+		runet.setCache( cache );
+	}
+	
+	/** \brief Normalise the images of one slice row by row, as the script does for an image sent alone (2D input).
+	 * Off by default: all the slices of the batch are then normalised as a whole, as for a stack sent alone */
+	public void setRowNormalisedSingles( boolean rows )
+	{
+		row_singles = rows;
+	}
+	
+	/** \brief Resize the image and add it to the batch, run the batch if it is full */
+	public void add( String name, ImagePlus imp )
+	{
+		imp.deleteRoi();
+		ImageStack resized = runet.resizeSlices( imp, size );
+		
+		// mask already calculated for this image, waits only to be given back in order
+		String key = null;
+		if ( runet.useCache() && !model_paths.isEmpty() )
+		{
+			List< RandomAccessibleInterval< UnsignedByteType > > planes = new ArrayList<>();
+			for ( int z = 1; z <= resized.getSize(); z++ )
+				planes.add( ArrayImgs.unsignedBytes( (byte[]) resized.getPixels( z ), size, size ) );
+			key = MaskCache.key( runet.getScriptName(), model_paths, nfeat, standardize, new long[] { size, size, resized.getSize() }, planes );
+			ImagePlus mask = MaskCache.load( key );
+			if ( mask != null )
+			{
+				names.add( name );
+				inputs.add( null );
+				keys.add( key );
+				cached.add( mask );
+				if ( nwaiting == 0 )
+					flush();
+				return;
+			}
+		}
+		
+		if ( nwaiting > 0 && nwaiting + resized.getSize() > batch_size )
+			flush();
+		names.add( name );
+		inputs.add( resized );
+		keys.add( key );
+		cached.add( null );
+		nwaiting += resized.getSize();
+		if ( nwaiting >= batch_size )
+			flush();
+	}
+	
+	/** \brief Run the networks on all the waiting images, and send each mask to the receiver */
+	public void flush()
+	{
+		if ( names.isEmpty() )
+			return;
+		
+		// pack all the slices in one shared memory image
+		final ShmImg< UnsignedByteType > batch = ( nwaiting > 0 ) ? new ShmImg<>( new UnsignedByteType(), size, size, nwaiting ) : null;
+		final int[] first = firstSlices( inputs );
+		IntStream.range( 0, inputs.size() ).parallel().forEach( i ->
+		{
+			final ImageStack stack = inputs.get( i );
+			if ( stack == null )
+				return;
+			for ( int z = 0; z < stack.getSize(); z++ )
+			{
+				final byte[] pixels = (byte[]) stack.getPixels( z+1 );
+				final Cursor< UnsignedByteType > cursor = Views.flatIterable( Views.hyperSlice( batch, 2, first[ i ] + z ) ).cursor();
+				for ( int j = 0; j < pixels.length; j++ )
+					cursor.next().set( pixels[ j ] & 0xff );
+			}
+		} );
+		
+		ShmImg< FloatType > bin = null;
+		if ( batch != null )
+		{
+			IJ.showStatus( "Segment "+names.size()+" images ("+nwaiting+" slices) with "+model_paths.size()+" neural networks..." );
+			if ( !model_paths.isEmpty() )
+			{
+				// single images normalised row by row if asked (as a 2D image sent alone)
+				List< Integer > row_slices = new ArrayList< Integer >();
+				for ( int i = 0; row_singles && i < inputs.size(); i++ )
+					if ( inputs.get( i ) != null && inputs.get( i ).getSize() == 1 )
+						row_slices.add( first[ i ] );
+				try
+				{
+					bin = runet.predict( batch, model_paths, nfeat, standardize, true, debug, row_slices );
+				}
+				catch ( RuntimeException e )
+				{
+					IJ.log( "Segmentation of "+names.size()+" images failed: "+e );
+				}
+			}
+			batch.ndArray().close();
+		}
+		
+		// scatter the masks back to their image
+		for ( int i = 0; i < names.size(); i++ )
+		{
+			ImagePlus mask = cached.get( i );
+			if ( mask == null && bin != null )
+			{
+				mask = EnsembleMask.toByte( sliceRange( bin, first[ i ], inputs.get( i ).getSize(), nwaiting ), "mask" );
+				MaskCache.save( keys.get( i ), mask );
+			}
+			receiver.accept( names.get( i ), mask );
+		}
+		if ( bin != null )
+			bin.ndArray().close();
+		
+		names.clear();
+		inputs.clear();
+		keys.clear();
+		cached.clear();
+		nwaiting = 0;
+	}
+	
+	/** \brief Index of the first slice of each image in the batch (cached images, null, take no slice) */
+	static int[] firstSlices( List< ImageStack > inputs )
+	{
+		final int[] first = new int[ inputs.size() ];
+		for ( int i = 1; i < inputs.size(); i++ )
+			first[ i ] = first[ i-1 ] + ( ( inputs.get( i-1 ) == null ) ? 0 : inputs.get( i-1 ).getSize() );
+		return first;
+	}
+	
+	/** \brief Part of the batch mask from slice first, for n slices (the batch having total slices).
+	 * Slices of the batch are along the outermost dimension that is not 1. */
+	static RandomAccessibleInterval< FloatType > sliceRange( RandomAccessibleInterval< FloatType > bin, int first, int n, int total )
+	{
+		if ( total == 1 )
+			return bin;
+		final long[] min = new long[ bin.numDimensions() ];
+		final long[] max = bin.maxAsLongArray();
+		int axis = bin.numDimensions() - 1;
+		while ( axis > 0 && bin.dimension( axis ) == 1 )
+			axis--;
+		min[ axis ] = first;
+		max[ axis ] = first + n - 1;
+		return Views.interval( bin, min, max );
+	}
+}
@@ -85,6 +85,9 @@ import org.apache.commons.io.IOUtils;
 
 public class Utils
 {
+	/** \brief Lock for the ImageJ commands that use static parameters or image windows (resizing, selection interpolation, FeatureJ, PIV...),
+	 * so that they are run by one movie at a time when several movies are measured together */
+	public static final Object ijLock = new Object();
     
     	/** Be sure there s no calibration */
 	public Calibration initCalibration(ImagePlus imp)
@@ -356,72 +359,21 @@ public class Utils
         
         
         /** \brief Delete part of the Roi if it's in the toer Roi area */
-	public Roi cleanRoi( RoiManager rm, ImagePlus imp, Roi in, Roi toer )
+	public Roi cleanRoi( Roi in, Roi toer )
 	{
-		int lim = rm.getCount();
-		rm.addRoi(in);
-		rm.addRoi(toer);
-		rm.setSelectedIndexes(new int[]{lim,lim+1});
-		rm.runCommand(imp,"AND");
-		// no intersection, no pb
-		if ( imp.getRoi() == null )
-		{
-			rm.setSelectedIndexes(new int[]{lim,lim+1});
-			rm.runCommand(imp,"Delete");
-			return in;
-		}
-		rm.runCommand(imp,"Add");
-		
-		rm.setSelectedIndexes(new int[]{lim,lim+2});
-		rm.runCommand(imp,"XOR");
-		rm.runCommand(imp,"Add");
-		Roi res = rm.getRoi(lim+3);
-		
-		rm.setSelectedIndexes(new int[]{lim,lim+1, lim+2, lim+3});
-		rm.runCommand(imp,"Delete");
-		
-		return res;
+		return RoiBoolean.clean( in, toer );
 	}
 	
         /** \brief For all Rois in er array, clean the parts that overlap with found Rois */
-	public Roi cleanRoiAll( RoiManager rm, ImagePlus imp, Roi cortex, Roi[] er )
+	public Roi cleanRoiAll( Roi cortex, Roi[] er )
 	{
-		int deb = rm.getCount();
-		for ( int i = 0; i < er.length; i++ )
-		{
-			imp.setRoi(er[i]);
-			rm.runCommand(imp,"Add");
-			if (i > 0 )
-			{
-				rm.setSelectedIndexes(new int[]{deb,deb+1});
-				rm.runCommand(imp,"AND");
-				rm.runCommand(imp,"Add");
-				rm.setSelectedIndexes(new int[]{deb,deb+1});
-				rm.runCommand(imp,"Delete");
-			}
-		}
-		Roi ander = rm.getRoi(deb);
-		rm.setSelectedIndexes(new int[]{deb});
-		rm.runCommand(imp,"Delete");
-		return cleanRoi(rm, imp,  cortex, ander);
+		return RoiBoolean.cleaned( cortex, er, -1 );
 	}
 
-        /** \brief Return the Rois after removing the err ones */
-	public Roi getCleanedRoi( RoiManager rm, ImagePlus imp, Roi cortex, Roi[] er, int slice)
+        /** \brief Return the Rois after removing the err ones (calculated once by contour and slice, shared: copy it before binding it to an image) */
+	public Roi getCleanedRoi( Roi cortex, Roi[] er, int slice)
 	{
-		if ( slice < 0 )
-			return cleanRoiAll(rm, imp, cortex, er);
-		//System.out.println("clean "+slice);
-		for ( int i = 0; i < er.length; i++ )
-		{
-                        //System.out.println("pos "+er[i].getPosition());
-			if ( er[i].getPosition() == slice )
-			{
-				return cleanRoi(rm, imp, cortex, er[i]);
-			}
-		}
-		//System.out.println("no clean "+slice);
-		return cortex;
+		return RoiBoolean.cleaned( cortex, er, slice );
 	}
 	
 	/** \brief check if part of Roi is outside of image
@@ -462,6 +414,12 @@ public class Utils
 	
         /** \brief Change the size of the Roi to scale it to new image size */
 	public void rescaleRois(RoiManager rm, ImagePlus ip, double factxy)
+	{
+		rescaleRois( rm, ip, factxy, factxy );
+	}
+	
+	/** \brief Scale all the Rois of the manager, with different x and y factors */
+	public void rescaleRois(RoiManager rm, ImagePlus ip, double factx, double facty)
 	{
 		Roi[] rois = rm.getRoisAsArray();
 		rm.reset();
@@ -469,7 +427,7 @@ public class Utils
 		for ( int i=0; i < rois.length; i++ )
 		{
 			Roi cur = rois[i];
-			Roi scaled = scaler.scale(cur, factxy, factxy, false);
+			Roi scaled = scaler.scale(cur, factx, facty, false);
 			ip.setSlice(cur.getPosition());
 			scaled.setPosition(cur.getPosition());
 			ip.setRoi(scaled);
@@ -549,13 +507,14 @@ public class Utils
 	    return 0.5 * Math.abs(area);
 	}
 	
-        /** \brief Distance between a point and a polygon */
+        /** \brief Distance between a point and a (closed) polygon, to its closest edge */
         public double distanceToPolygon( float x, float y, FloatPolygon poly )
         {
             double res = 10000;
             for ( int i=0; i < poly.npoints; i++)
             {
-                double dist = Math.sqrt( Math.pow(x-poly.xpoints[i], 2) + Math.pow(y-poly.ypoints[i], 2) );
+                int j = ( i+1 < poly.npoints ) ? i+1 : 0;
+                double dist = SegmentIndex.segmentDistance( x, y, poly.xpoints[i], poly.ypoints[i], poly.xpoints[j], poly.ypoints[j] );
                 if ( dist < res ) res = dist;
             }
             return res;
@@ -712,11 +671,11 @@ public class Utils
 		return thick;
 	}
         
-        /** \brief Find distances between two Roi (mean distance, std, min, max) */
+        /** \brief Find distances between two Roi (mean distance, std, min, max), from each point of in to the closest edge of out */
 	public double[] roisThickness(Roi in, Roi out)
 	{
 		FloatPolygon ip = in.getFloatPolygon();
-		FloatPolygon op = out.getFloatPolygon();
+		SegmentIndex op = new SegmentIndex( out.getFloatPolygon() );
 
 		double[] mdist = new double[ip.npoints];
 		double[] thick = new double[4];
@@ -725,7 +684,7 @@ public class Utils
 		thick[2] = 0;      // mean thickness
 		for ( int i = 0; i < ip.npoints; i++ )
 		{
-			double dist = distanceToPolygon( ip.xpoints[i], ip.ypoints[i], op );
+			double dist = op.distance( ip.xpoints[i], ip.ypoints[i] );
 			mdist[i] = dist;
 			if ( dist < thick[0] ) thick[0] = dist;
 			if ( dist > thick[1] ) thick[1] = dist;
@@ -744,12 +703,12 @@ public class Utils
 	public double roiMeanThickness(Roi in, Roi out)
 	{
 		FloatPolygon ip = in.getFloatPolygon();
-		FloatPolygon op = out.getFloatPolygon();
+		SegmentIndex op = new SegmentIndex( out.getFloatPolygon() );
 
 		double thick = 0;
 		for ( int i = 0; i < ip.npoints; i++ )
 		{
-			thick += distanceToPolygon( ip.xpoints[i], ip.ypoints[i], op );
+			thick += op.distance( ip.xpoints[i], ip.ypoints[i] );
                 }
 		thick /= ip.npoints;
 		return thick;
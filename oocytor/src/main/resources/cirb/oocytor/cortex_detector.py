@@ -136,26 +136,60 @@ def share_as_ndarray(img):
     shared.ndarray()[:] = img
     return shared
 
+# models stay loaded in the python service between the tasks
+if "loaded_models" not in globals():
+    loaded_models = {}
+
+def get_model(path):
+    """ Load the model only the first time it is used """
+    if path not in loaded_models:
+        if debug:
+            task.update( f"Building model {path} and load weights" )
+        loaded_models[path] = tf.keras.models.load_model( path, custom_objects={"jaccard_distance":jaccard_distance, "mean_iou":mean_iou}  )
+    return loaded_models[path]
+
 img = image.ndarray()
 task.update( f"Starting python segmentation, input image {img.shape}" )
 if debug:
     task.update( f"Normalizing each slice" )
-images = np.array([normalise(i) for i in img]).reshape(-1, model_size, model_size, 1)
-if debug:
-    task.update( f"Building model {model_path} and load weights" )
-#model = build_unet( model_size, nfeatures )
-#model.load_weights( model_path+"/variables/variables" )
-model = tf.keras.models.load_model( model_path, custom_objects={"jaccard_distance":jaccard_distance, "mean_iou":mean_iou}  )
-
-if debug:
-    task.update( f"Do prediction" )
-res = model.predict( images, batch_size = batch_size )
-#if debug:
-#    task.update( f"Send results back from shape {res.shape} to 5d shape" )
-res = to_5d( res )
-# ZYX1 -> TZCYX
-res = np.rollaxis( res, -3, -4 )
+if img.ndim == 2:
+    # a single image is normalised row by row
+    images = np.array([normalise(i) for i in img])
+else:
+    # slices listed in row_slices (single images of a batch, if the caller asks) are normalised row by row
+    rows = set( row_slices )
+    images = np.array([np.array([normalise(r) for r in sl]) if z in rows else normalise(sl) for z, sl in enumerate(img)])
+images = images.reshape(-1, model_size, model_size, 1)
+
+# all the networks of the ensemble are run on the same input
+masks = []
+total = None
+for num, path in enumerate( model_paths ):
+    model = get_model( path )
+    task.export( loaded_models=loaded_models )
+    if debug:
+        task.update( f"Do prediction with network {num+1}/{len(model_paths)}" )
+    task.update( f"Prediction with network {num+1}", current=num, maximum=len(model_paths) )
+    res = model.predict( images, batch_size = batch_size )
+    #if debug:
+    #    task.update( f"Send results back from shape {res.shape} to 5d shape" )
+    res = to_5d( res )
+    # ZYX1 -> TZCYX
+    res = np.rollaxis( res, -3, -4 )
+    if average:
+        # summed in place in double precision
+        if total is None:
+            total = res.astype( np.float64 )
+        else:
+            total += res
+    else:
+        masks.append( res )
+
+if average:
+    res = ( total / len(model_paths) ).astype( np.float32 )
+else:
+    # one mask per network, stacked along the first axis
+    res = np.concatenate( masks, axis=0 )
 if debug:
     task.update( f"Send results back shape {res.shape}" )
 task.outputs["mask"] = share_as_ndarray( res )
-   
@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.measure.ResultsTable;
+import ij.process.ByteProcessor;
+import org.junit.Test;
+
+/**
+ * \brief GLCM features of a fixed image with the default settings, against the values of the first implementation
+ *
+ * @author Gaelle Letort
+ */
+public class GLCMTextureTest
+{
+	/** values of the first implementation (matrix of doubles filled pixel by pixel) */
+	private static final String[] names = { "Angular2Moment", "Entropy", "InverseDiffMoment", "ClusterTendency", 
+		"ClusterShade", "Correlation", "Contrast", "Homogeneity", "Variance" };
+	private static final double[] baseline = { 4.8696322095517373E-4, 7.768416399589858, 0.09280950243789111, 9397.733755988782,
+		47028.93684152964, 3.999067189649154E-4, 195.96827195467606, 0.06446860662122744, 4796.85101397169 };
+	
+	/** values with 8 gray levels, binned between min-max then between percentiles */
+	private static final double[] minmax8 = { 0.0662823712572928, 2.8935122100553854, 0.7991501416430595, 12.639003603271032,
+		2.1465133100644866, 0.2878350695627396, 0.40169971671388105, 0.6987252124645893, 6.520351659992457 };
+	private static final double[] percentile8 = { 0.05918753862080588, 2.976783643381393, 0.7904815864022663, 14.980097424744601,
+		4.026112474517191, 0.24488984284752546, 0.43399433427762035, 0.6876613157066416, 7.707045879511113 };
+	
+	private static double[] features( GLCMTexture glcm, ByteProcessor ip )
+	{
+		ResultsTable rt = new ResultsTable();
+		rt.incrementCounter();
+		glcm.calcTexture( ip, TestImages.polygon(), rt, "Oo" );
+		double[] res = new double[ names.length ];
+		for ( int f = 0; f < names.length; f++ )
+			res[f] = rt.getValue( "OoGLCM"+names[f], 0 );
+		return res;
+	}
+	
+	private static GLCMTexture quantised( int levels, boolean percentiles )
+	{
+		GLCMTexture glcm = new GLCMTexture();
+		glcm.setQuantisation( levels, percentiles );
+		return glcm;
+	}
+	
+	private static void checkSame( String msg, double[] expected, double[] values, double tol )
+	{
+		for ( int f = 0; f < names.length; f++ )
+			assertEquals( msg+" "+names[f], expected[f], values[f], Math.abs( expected[f] )*tol );
+	}
+	
+	@Test
+	public void sameAsBaseline()
+	{
+		checkSame( "default", baseline, features( new GLCMTexture(), TestImages.waves() ), 1e-9 );
+		// 256 levels (or an invalid number) keeps the pixel values
+		checkSame( "256 levels", baseline, features( quantised( 256, false ), TestImages.waves() ), 1e-9 );
+		checkSame( "256 levels, percentiles", baseline, features( quantised( 256, true ), TestImages.waves() ), 1e-9 );
+		checkSame( "invalid levels", baseline, features( quantised( 1000, false ), TestImages.waves() ), 1e-9 );
+	}
+	
+	@Test
+	public void quantisedValues()
+	{
+		checkSame( "min-max", minmax8, features( quantised( 8, false ), TestImages.waves() ), 1e-9 );
+		checkSame( "percentiles", percentile8, features( quantised( 8, true ), TestImages.waves() ), 1e-9 );
+	}
+	
+	@Test
+	public void quantisedShiftInvariant()
+	{
+		// bins follow the roi intensities, so a brighter image (without saturation) has the same texture
+		ByteProcessor ip = TestImages.waves();
+		ByteProcessor darker = (ByteProcessor) ip.duplicate();
+		darker.subtract( 15 );
+		for ( boolean percentiles : new boolean[] { false, true } )
+			checkSame( "16 levels", features( quantised( 16, percentiles ), ip ), features( quantised( 16, percentiles ), darker ), 1e-12 );
+	}
+	
+	@Test
+	public void sameWithReusedCalculator()
+	{
+		GLCMTexture glcm = new GLCMTexture();
+		ResultsTable rt = new ResultsTable();
+		rt.incrementCounter();
+		glcm.calcTexture( TestImages.waves(), TestImages.polygon(), rt, "A" );
+		glcm.calcTexture( TestImages.waves(), TestImages.polygon(), rt, "B" );
+		for ( int f = 0; f < names.length; f++ )
+			assertEquals( names[f], rt.getValue( "AGLCM"+names[f], 0 ), rt.getValue( "BGLCM"+names[f], 0 ), 0 );
+	}
+}
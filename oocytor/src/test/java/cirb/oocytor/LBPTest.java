@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.process.ByteProcessor;
+import org.junit.Test;
+
+/**
+ * \brief LBP features of a fixed image: statistics against the values of the first implementation, 
+ * and histograms against the values when they were added
+ *
+ * @author Gaelle Letort
+ */
+public class LBPTest
+{
+	private static final String[] stats = { "Mean", "Var", "Skewness", "Kurtosis" };
+	private static final double[] baseline = { 105.47275729223992, 7994.517832408352, 5.16351489588229E-7, 2.3226295332922158E-8 };
+	private static final double[] riu2 = { 0.0379746835443038, 0.11447440836543754, 0.07980187121629058, 0.07044578976334617, 
+		0.13593835993395706, 0.05558613098514034, 0.08200330214639516, 0.10016510731975783, 0.020913593835993397, 0.3026967528893781 };
+	
+	/** multi-scale histogram at P=8, R=1, when it was added */
+	private static final double[] p8r1 = { 0.10952118877270225, 0.08420473307649973, 0.09686296092460099, 0.05448541552008806, 
+		0.17391304347826086, 0.041827187671986794, 0.09686296092460099, 0.08200330214639516, 0.09190974133186572, 0.16840946615299945 };
+	
+	private ResultsTable measure()
+	{
+		ResultsTable rt = new ResultsTable();
+		rt.incrementCounter();
+		new LBP().calcLBP( TestImages.waves(), TestImages.polygon(), rt, "Oo" );
+		return rt;
+	}
+	
+	@Test
+	public void statsSameAsBaseline()
+	{
+		ResultsTable rt = measure();
+		for ( int s = 0; s < stats.length; s++ )
+			assertEquals( stats[s], baseline[s], rt.getValue( "OoLBP"+stats[s], 0 ), Math.abs( baseline[s] )*1e-12 );
+	}
+	
+	@Test
+	public void histograms()
+	{
+		ResultsTable rt = measure();
+		for ( int b = 0; b < riu2.length; b++ )
+			assertEquals( "Riu2_"+b, riu2[b], rt.getValue( "OoLBPRiu2_"+b, 0 ), 1e-12 );
+		assertEquals( "Uniform", 1, sum( rt, "OoLBPUniform_", 59 ), 1e-9 );
+		assertEquals( "RotInv", 1, sum( rt, "OoLBPRotInv_", 36 ), 1e-9 );
+	}
+	
+	private double sum( ResultsTable rt, String name, int nbins )
+	{
+		double s = 0;
+		for ( int b = 0; b < nbins; b++ )
+			s += rt.getValue( name+b, 0 );
+		return s;
+	}
+	
+	@Test
+	public void multiScaleHistograms()
+	{
+		ResultsTable rt = new ResultsTable();
+		rt.incrementCounter();
+		new LBP().calcMultiScaleLBP( TestImages.waves(), TestImages.polygon(), rt, "Oo" );
+		for ( int b = 0; b < p8r1.length; b++ )
+			assertEquals( "P8R1_"+b, p8r1[b], rt.getValue( "OoLBPP8R1_"+b, 0 ), 1e-12 );
+		// riu2: P+2 bins per scale
+		assertEquals( "P8R1", 1, sum( rt, "OoLBPP8R1_", 10 ), 1e-9 );
+		assertEquals( "P16R2", 1, sum( rt, "OoLBPP16R2_", 18 ), 1e-9 );
+		assertEquals( "P24R3", 1, sum( rt, "OoLBPP24R3_", 26 ), 1e-9 );
+	}
+	
+	@Test
+	public void multiScaleBorders()
+	{
+		// the byte array path (inside the image) must give the same codes as the bounds-checked one, 
+		// used for all the pixels of a 16-bit image
+		ByteProcessor ip = TestImages.waves();
+		LBP lbp = new LBP();
+		for ( Roi roi : new Roi[] { TestImages.polygon(), new OvalRoi( -6, 30, 40, 40 ), new Roi( 0, 0, 64, 64 ) } )
+		{
+			double[][] fast = lbp.buildMultiScaleHists( ip, roi );
+			double[][] checked = lbp.buildMultiScaleHists( ip.convertToShortProcessor( false ), roi );
+			for ( int s = 0; s < fast.length; s++ )
+				assertArrayEquals( fast[s], checked[s], 0 );
+		}
+	}
+}
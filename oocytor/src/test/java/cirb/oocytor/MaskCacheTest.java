@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package cirb.oocytor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import org.junit.Test;
+
+/**
+ * \brief The MaskCache key must change with everything that changes the mask, and a saved mask must be read back unchanged
+ *
+ * @author Gaelle Letort
+ */
+public class MaskCacheTest
+{
+	private static final String SCRIPT = "cortex_detector.py";
+
+	/** \brief Model folder with a variables file of this content */
+	private static String model( String content ) throws IOException
+	{
+		Path dir = Files.createTempDirectory( "oocytor_model" );
+		Path variables = Files.createDirectory( dir.resolve( "variables" ) );
+		Files.write( variables.resolve( "variables.data-00000-of-00001" ), content.getBytes() );
+		dir.toFile().deleteOnExit();
+		return dir.toString();
+	}
+
+	private static List< Img< UnsignedByteType > > planes( int seed )
+	{
+		Img< UnsignedByteType > plane = ArrayImgs.unsignedBytes( 16, 8 );
+		int i = seed;
+		for ( UnsignedByteType pix : plane )
+			pix.set( ( i++ * 37 ) % 256 );
+		return Collections.singletonList( plane );
+	}
+
+	private static void delete( Path dir ) throws IOException
+	{
+		try ( Stream< Path > files = Files.walk( dir ) )
+		{
+			files.sorted( ( a, b ) -> b.compareTo( a ) ).forEach( p -> p.toFile().delete() );
+		}
+	}
+
+	@Test
+	public void keyChangesWithInputs() throws IOException
+	{
+		String model = model( "weights" );
+		List< String > models = Collections.singletonList( model );
+		long[] dims = { 16, 8 };
+		String key = MaskCache.key( SCRIPT, models, 32, false, dims, planes( 0 ) );
+		assertNotNull( key );
+		assertEquals( "same inputs", key, MaskCache.key( SCRIPT, models, 32, false, dims, planes( 0 ) ) );
+		assertEquals( "single slice as 2D or 3D", key, MaskCache.key( SCRIPT, models, 32, false, new long[]{ 16, 8, 1 }, planes( 0 ) ) );
+
+		assertNotEquals( "pixels", key, MaskCache.key( SCRIPT, models, 32, false, dims, planes( 1 ) ) );
+		assertNotEquals( "nfeat", key, MaskCache.key( SCRIPT, models, 16, false, dims, planes( 0 ) ) );
+		assertNotEquals( "standardize", key, MaskCache.key( SCRIPT, models, 32, true, dims, planes( 0 ) ) );
+		assertNotEquals( "dims", key, MaskCache.key( SCRIPT, models, 32, false, new long[]{ 8, 16 }, planes( 0 ) ) );
+		assertNotEquals( "script", key, MaskCache.key( "zp_detector.py", models, 32, false, dims, planes( 0 ) ) );
+		
+		// same path, other weights
+		String other = model( "other weights" );
+		assertNotEquals( "model", key, MaskCache.key( SCRIPT, Collections.singletonList( other ), 32, false, dims, planes( 0 ) ) );
+		assertNotEquals( "several models", key, MaskCache.key( SCRIPT, Arrays.asList( model, other ), 32, false, dims, planes( 0 ) ) );
+		delete( Paths.get( model ) );
+		delete( Paths.get( other ) );
+	}
+
+	@Test
+	public void noKeyWithoutVariables() throws IOException
+	{
+		Path dir = Files.createTempDirectory( "oocytor_model" );
+		assertNull( MaskCache.key( SCRIPT, Collections.singletonList( dir.toString() ), 32, false, new long[]{ 16, 8 }, planes( 0 ) ) );
+		assertNull( MaskCache.load( null ) );
+		delete( dir );
+	}
+
+	@Test
+	public void saveAndLoad() throws IOException
+	{
+		// cache in a temporary home, not in the user's one
+		String home = System.getProperty( "user.home" );
+		Path tmphome = Files.createTempDirectory( "oocytor_home" );
+		System.setProperty( "user.home", tmphome.toString() );
+		try
+		{
+			String key = "0123456789abcdef";
+			assertNull( "not cached yet", MaskCache.load( key ) );
+
+			ImageStack stack = new ImageStack( 5, 3 );
+			for ( int z = 0; z < 6; z++ )
+			{
+				byte[] pixels = new byte[ 15 ];
+				for ( int i = 0; i < pixels.length; i++ )
+					pixels[i] = (byte) ( ( z*15 + i ) * 11 );
+				stack.addSlice( "", pixels );
+			}
+			ImagePlus mask = new ImagePlus( "mask", stack );
+			mask.setDimensions( 1, 2, 3 );
+			MaskCache.save( key, mask );
+			assertEquals( "no temporary file left", 1, new File( tmphome.toFile(), ".local/share/oocytor/cache" ).list().length );
+
+			ImagePlus cached = MaskCache.load( key );
+			assertNotNull( cached );
+			assertEquals( 5, cached.getWidth() );
+			assertEquals( 3, cached.getHeight() );
+			assertEquals( 1, cached.getNChannels() );
+			assertEquals( 2, cached.getNSlices() );
+			assertEquals( 3, cached.getNFrames() );
+			for ( int z = 1; z <= 6; z++ )
+				assertArrayEquals( "slice "+z, (byte[]) stack.getPixels( z ), (byte[]) cached.getStack().getPixels( z ) );
+		}
+		finally
+		{
+			System.setProperty( "user.home", home );
+			delete( tmphome );
+		}
+	}
+}
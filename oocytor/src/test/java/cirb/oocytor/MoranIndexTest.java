@@ -0,0 +1,62 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.gui.OvalRoi;
+import org.junit.Test;
+
+/**
+ * \brief Moran's index of a fixed image against the values of the first implementation (sum over all pairs in the kernel)
+ *
+ * @author Gaelle Letort
+ */
+public class MoranIndexTest
+{
+	@Test
+	public void sameAsBaseline()
+	{
+		assertEquals( "K5", 0.861826941225356, new MoranIndex().run( 5, TestImages.waves(), TestImages.polygon() ), 1e-12 );
+		assertEquals( "K20", 0.1080813468526622, new MoranIndex().run( 20, TestImages.waves(), TestImages.polygon() ), 1e-12 );
+		assertEquals( "oval K10", 0.6242858622268574, new MoranIndex().run( 10, TestImages.waves(), new OvalRoi( 10, 12, 40, 36 ) ), 1e-12 );
+	}
+	
+	@Test
+	public void severalKernelsSameAsOne()
+	{
+		double[] res = new MoranIndex().run( new double[]{ 5, 20 }, TestImages.waves(), TestImages.polygon() );
+		assertEquals( "K5", new MoranIndex().run( 5, TestImages.waves(), TestImages.polygon() ), res[0], 1e-12 );
+		assertEquals( "K20", new MoranIndex().run( 20, TestImages.waves(), TestImages.polygon() ), res[1], 1e-12 );
+	}
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.gui.Line;
+import ij.process.ImageProcessor;
+import org.junit.Test;
+
+/**
+ * \brief Profiles of RadialSampler against the wide Line.getPixels it replaces
+ *
+ * @author Gaelle Letort
+ */
+public class RadialSamplerTest
+{
+	/** \brief Same rays measured one by one with a wide Line, as the plugins did */
+	private void checkSameAsLine( ImageProcessor ip, float cx, float cy, float radius, int width )
+	{
+		ImagePlus imp = new ImagePlus( "rays", ip );
+		double[] angles = RadialSampler.angles( 36 );
+		RadialSampler rays = new RadialSampler( cx, cy, radius, angles, width );
+		double[][] profiles = rays.sampleAll( ip );
+		for ( int a = 0; a < angles.length; a++ )
+		{
+			Line line = new Line( cx, cy, cx + radius * Math.cos( angles[a] ), cy + radius * Math.sin( angles[a] ) );
+			line.setStrokeWidth( width );
+			imp.setRoi( line );
+			double[] vals = line.getPixels();
+			assertEquals( "length of ray "+a, vals.length, rays.length( a ) );
+			for ( int i = 0; i < vals.length; i++ )
+				assertEquals( "ray "+a+" point "+i, vals[i], profiles[a][i], 0 );
+		}
+	}
+	
+	@Test
+	public void byteImage()
+	{
+		checkSameAsLine( TestImages.waves(), 31.5f, 30.2f, 25, 15 );
+	}
+	
+	@Test
+	public void shortImage()
+	{
+		checkSameAsLine( TestImages.waves().convertToShort( false ), 33, 29, 20, 7 );
+	}
+	
+	@Test
+	public void floatImage()
+	{
+		ImageProcessor ip = TestImages.waves().convertToFloat();
+		ip.multiply( 1.7 );
+		checkSameAsLine( ip, 30, 34.6f, 18, 15 );
+	}
+	
+	@Test
+	public void raysLeavingTheImage()
+	{
+		checkSameAsLine( TestImages.waves(), 50, 12, 40, 15 );
+	}
+}
@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * \brief Exit distances of rays from RayPolygon against the intersection of each ray with every edge,
+ * and against walking along the rays as the plugins did
+ *
+ * @author Gaelle Letort
+ */
+public class RayPolygonTest
+{
+	/** \brief Star shaped polygon around (cx, cy): each ray from the center leaves it only once */
+	private FloatPolygon star( Random rand, int n, double cx, double cy )
+	{
+		FloatPolygon poly = new FloatPolygon();
+		for ( int i = 0; i < n; i++ )
+		{
+			double ang = 2*Math.PI*i/n;
+			double rad = 30 + 12*rand.nextDouble();
+			poly.addPoint( cx + rad*Math.cos(ang), cy + rad*Math.sin(ang) );
+		}
+		return poly;
+	}
+	
+	/** \brief Closest crossing of the ray with any edge */
+	private double allEdges( FloatPolygon fp, double cx, double cy, double ang )
+	{
+		double dx = Math.cos( ang );
+		double dy = Math.sin( ang );
+		double best = Double.POSITIVE_INFINITY;
+		for ( int i = 0, j = fp.npoints-1; i < fp.npoints; j = i++ )
+		{
+			double x1 = fp.xpoints[j]-cx, y1 = fp.ypoints[j]-cy;
+			double ex = fp.xpoints[i]-fp.xpoints[j], ey = fp.ypoints[i]-fp.ypoints[j];
+			double denom = dx*ey - dy*ex;
+			if ( denom == 0 ) continue;
+			double s = ( x1*dy - y1*dx )/denom;
+			double t = ( x1*ey - y1*ex )/denom;
+			if ( s >= 0 && s <= 1 && t >= 0 ) best = Math.min( best, t );
+		}
+		return best;
+	}
+	
+	@Test
+	public void sameAsAllEdges()
+	{
+		Random rand = new Random( 11 );
+		for ( int nang : new int[]{ 150, 300, 1000 } )
+		{
+			FloatPolygon fp = star( rand, 200, 60, 55 );
+			double[] angles = RadialSampler.angles( nang );
+			double[] exits = RayPolygon.exitDistances( fp, 60.3, 54.8, angles );
+			for ( int a = 0; a < nang; a++ )
+				assertEquals( "ray "+a, allEdges( fp, 60.3, 54.8, angles[a] ), exits[a], 1e-9 );
+		}
+	}
+	
+	@Test
+	public void notStarShaped()
+	{
+		// U shape: some rays cross the polygon several times, the first exit is kept
+		FloatPolygon fp = new FloatPolygon( new float[]{ 0, 60, 60, 40, 40, 20, 20, 0 }, new float[]{ 0, 0, 60, 60, 20, 20, 60, 60 } );
+		double[] angles = RayPolygon.anglesFromZero( 360 );
+		double[] exits = RayPolygon.exitDistances( fp, 30, 10, angles );
+		for ( int a = 0; a < angles.length; a++ )
+			assertEquals( "ray "+a, allEdges( fp, 30, 10, angles[a] ), exits[a], 1e-9 );
+		assertEquals( "right", 30, exits[0], 1e-9 );
+		assertEquals( "down", 10, exits[90], 1e-9 );
+	}
+	
+	@Test
+	public void centerOutside()
+	{
+		FloatPolygon fp = star( new Random( 3 ), 50, 60, 55 );
+		for ( double d : RayPolygon.exitDistances( fp, 200, 200, RadialSampler.angles( 60 ) ) )
+			assertEquals( 0, d, 0 );
+	}
+	
+	@Test
+	public void exitIndexSameAsWalking()
+	{
+		// first point of the ray outside of the contour, walking point by point as getAnglePosition did
+		Random rand = new Random( 5 );
+		FloatPolygon fp = star( rand, 120, 60, 55 );
+		float cx = 61, cy = 54;
+		float radius = 60;
+		int n = 61;
+		double[] angles = RadialSampler.angles( 100 );
+		double[] exits = RayPolygon.exitDistances( fp, cx, cy, angles );
+		for ( int a = 0; a < angles.length; a++ )
+		{
+			int i = 0;
+			while ( fp.contains( (float) ( cx + radius*Math.cos(angles[a])*i/n ), (float) ( cy + radius*Math.sin(angles[a])*i/n ) ) )
+				i++;
+			assertEquals( "ray "+a, i, RayPolygon.exitIndex( exits[a], radius, n ) );
+		}
+		assertEquals( "outside", 0, RayPolygon.exitIndex( 0, radius, n ) );
+	}
+	
+	@Test
+	public void radiiCloseToWalking()
+	{
+		// radii of the shape fluctuation measure, as they were found by walking 0.05 pixel steps on the pixel grid
+		int nang = 300;
+		Roi[] rois = new Roi[3];
+		for ( int r = 0; r < rois.length; r++ )
+		{
+			// smooth oocyte-like contours
+			FloatPolygon fp = new FloatPolygon();
+			for ( int i = 0; i < 120; i++ )
+			{
+				double ang = 2*Math.PI*i/120;
+				double rad = 32 + 4*Math.sin( 3*ang + r ) + 2*Math.cos( 5*ang );
+				fp.addPoint( 60.2 + r + 1.1*rad*Math.cos(ang), 55.7 - r + rad*Math.sin(ang) );
+			}
+			rois[r] = new PolygonRoi( fp, Roi.POLYGON );
+		}
+		double[][] rads = RayPolygon.radialProfiles( rois, RayPolygon.anglesFromZero( nang ) );
+		double dang = 2*Math.PI/nang;
+		for ( int r = 0; r < rois.length; r++ )
+		{
+			double[] cent = rois[r].getContourCentroid();
+			double ang = 0;
+			double rad = 0;
+			for ( int a = 0; a < nang; a++ )
+			{
+				int x = (int) cent[0];
+				int y = (int) cent[1];
+				rad = rad/4.0;
+				while ( rois[r].contains(x, y) )
+				{
+					x = (int) (cent[0] + rad*Math.cos(ang));
+					y = (int) (cent[1] + rad*Math.sin(ang));
+					rad = rad + 0.05;
+				}
+				// the walk tested truncated pixel coordinates: up to a pixel from the exact contour
+				assertEquals( "roi "+r+" angle "+a, rad, rads[r][a], 1 );
+				ang = ang + dang;
+			}
+		}
+	}
+}
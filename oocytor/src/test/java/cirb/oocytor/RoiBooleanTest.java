@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.process.ByteProcessor;
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * \brief RoiBoolean against the RoiManager AND and XOR commands that the plugins used to clean the Rois
+ *
+ * The RoiManager needs a display, its commands are reproduced here as ImageJ runs them:
+ * AND is the ShapeRoi intersection of the selected Rois, simplified (no selection if empty), XOR is Roi.xor.
+ *
+ * @author Gaelle Letort
+ */
+public class RoiBooleanTest
+{
+	private static final int size = 300;
+	
+	private Roi managerAnd( Roi a, Roi b )
+	{
+		ShapeRoi s = new ShapeRoi( a );
+		s.and( new ShapeRoi( b ) );
+		Rectangle r = s.getBounds();
+		if ( r.width == 0 && r.height == 0 ) return null;
+		return s.trySimplify();
+	}
+	
+	/** \brief Utils.cleanRoi before RoiBoolean: AND of the Rois, then XOR of the Roi with the intersection */
+	private Roi managerClean( Roi in, Roi toer )
+	{
+		Roi and = managerAnd( in, toer );
+		if ( and == null ) return in;
+		return Roi.xor( new Roi[]{ in, and } );
+	}
+	
+	/** \brief Number of pixels filled differently by the two Rois */
+	private int pixelDiff( Roi a, Roi b )
+	{
+		ByteProcessor m1 = new ByteProcessor( size, size );
+		m1.setColor( 255 );
+		m1.fill( a );
+		ByteProcessor m2 = new ByteProcessor( size, size );
+		m2.setColor( 255 );
+		m2.fill( b );
+		byte[] p = (byte[]) m1.getPixels();
+		byte[] q = (byte[]) m2.getPixels();
+		int d = 0;
+		for ( int i = 0; i < p.length; i++ )
+			if ( p[i] != q[i] ) d++;
+		return d;
+	}
+	
+	private Roi contour( Random rand )
+	{
+		Roi oval = new OvalRoi( 40+rand.nextInt(40), 40+rand.nextInt(40), 150+rand.nextInt(40), 140+rand.nextInt(40) );
+		return new PolygonRoi( oval.getFloatPolygon(), Roi.POLYGON );
+	}
+	
+	@Test
+	public void cleanSameAsManager()
+	{
+		Random rand = new Random( 3 );
+		for ( int t = 0; t < 40; t++ )
+		{
+			Roi in = contour( rand );
+			Roi er = new OvalRoi( rand.nextInt(250), rand.nextInt(250), 30+rand.nextInt(60), 30+rand.nextInt(60) );
+			Roi expected = managerClean( in, er );
+			Roi res = RoiBoolean.clean( in, er );
+			if ( expected == in ) assertTrue( "no overlap "+t, res == in );
+			else assertEquals( "erased "+t, 0, pixelDiff( expected, res ) );
+		}
+	}
+	
+	@Test
+	public void operationsSameAsShapes()
+	{
+		Random rand = new Random( 8 );
+		for ( int t = 0; t < 20; t++ )
+		{
+			Roi a = contour( rand );
+			Roi b = contour( rand );
+			assertEquals( "and "+t, 0, pixelDiff( managerAnd( a, b ), RoiBoolean.and( a, b ) ) );
+			assertEquals( "xor "+t, 0, pixelDiff( Roi.xor( new Roi[]{ a, b } ), RoiBoolean.xor( a, b ) ) );
+			assertEquals( "not "+t, 0, pixelDiff( new ShapeRoi( a ).not( new ShapeRoi( b ) ), RoiBoolean.not( a, b ) ) );
+		}
+		assertNull( RoiBoolean.and( new Roi( 0, 0, 10, 10 ), new Roi( 50, 50, 10, 10 ) ) );
+	}
+	
+	@Test
+	public void cleanedByErasedSlice()
+	{
+		Random rand = new Random( 5 );
+		Roi cortex = contour( rand );
+		Roi[] er = new Roi[3];
+		for ( int i = 0; i < er.length; i++ )
+		{
+			er[i] = new OvalRoi( 100+10*i, 90, 80, 70 );
+			er[i].setPosition( i+1 );
+		}
+		assertEquals( "slice 2", 0, pixelDiff( managerClean( cortex, er[1] ), RoiBoolean.cleaned( cortex, er, 2 ) ) );
+		// area erased in all the slices
+		Roi all = managerAnd( managerAnd( er[0], er[1] ), er[2] );
+		assertEquals( "all slices", 0, pixelDiff( managerClean( cortex, all ), RoiBoolean.cleaned( cortex, er, -1 ) ) );
+		// calculated once
+		assertTrue( "cached", RoiBoolean.cleaned( cortex, er, 2 ) == RoiBoolean.cleaned( cortex, er, 2 ) );
+		// nothing erased in this slice: the contour itself
+		assertTrue( "not erased", RoiBoolean.cleaned( cortex, er, 7 ) == cortex );
+		// everything erased
+		Roi[] whole = { new Roi( 0, 0, size, size ) };
+		whole[0].setPosition( 1 );
+		assertNull( RoiBoolean.cleaned( cortex, whole, 1 ) );
+	}
+	
+	@Test
+	public void ringSameAsManager()
+	{
+		Roi out = new OvalRoi( 30, 30, 220, 210 );
+		Roi in = new OvalRoi( 55, 50, 170, 165 );
+		Roi ring = RoiBoolean.ring( in, out );
+		assertEquals( "ring", 0, pixelDiff( Roi.xor( new Roi[]{ in, out } ), ring ) );
+		// same Roi whatever the order of the contours
+		assertTrue( "cached in both orders", RoiBoolean.ring( out, in ) == ring );
+		assertNull( RoiBoolean.ring( in, in ) );
+	}
+}
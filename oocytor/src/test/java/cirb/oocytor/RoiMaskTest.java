@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import org.junit.Test;
+
+/**
+ * \brief RoiMask must contain exactly the pixels of Roi.contains
+ *
+ * @author Gaelle Letort
+ */
+public class RoiMaskTest
+{
+	private void checkSamePixels( Roi roi )
+	{
+		RoiMask mask = new RoiMask( roi );
+		int n = 0;
+		for ( int y = -5; y < 70; y++ )
+		{
+			int inruns = 0;
+			int[] runs = mask.runs( y );
+			for ( int r = 0; r < runs.length; r += 2 )
+			{
+				assertTrue( "runs in order", runs[r] < runs[r+1] );
+				inruns += runs[r+1] - runs[r];
+			}
+			int inrow = 0;
+			for ( int x = -5; x < 70; x++ )
+			{
+				boolean in = roi.contains( x, y );
+				assertEquals( "pixel "+x+","+y, in, mask.contains( x, y ) );
+				if ( in ) inrow++;
+			}
+			assertEquals( "row "+y, inrow, inruns );
+			n += inrow;
+		}
+		assertEquals( "count", n, mask.getCount() );
+	}
+	
+	@Test
+	public void polygon()
+	{
+		checkSamePixels( TestImages.polygon() );
+	}
+	
+	@Test
+	public void oval()
+	{
+		checkSamePixels( new OvalRoi( 10.5, 12, 40, 33 ) );
+	}
+	
+	@Test
+	public void rectangle()
+	{
+		checkSamePixels( new Roi( 3, 7, 20, 11 ) );
+	}
+	
+	@Test
+	public void ringWithHole()
+	{
+		ShapeRoi ring = new ShapeRoi( new OvalRoi( 5, 5, 54, 50 ) );
+		ring.not( new ShapeRoi( TestImages.polygon() ).and( new ShapeRoi( new OvalRoi( 15, 15, 30, 30 ) ) ) );
+		checkSamePixels( ring );
+	}
+	
+	@Test
+	public void cachedBySliceAndRoi()
+	{
+		Roi roi = TestImages.polygon();
+		assertTrue( "same mask", RoiMask.get( roi, 3 ) == RoiMask.get( roi, 3 ) );
+		assertTrue( "other slice", RoiMask.get( roi, 3 ) != RoiMask.get( roi, 4 ) );
+	}
+}
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package cirb.oocytor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * \brief Distances to the edges of a polygon: grid index against all the edges, 
+ * and against the first implementation (distance to the closest vertex)
+ *
+ * @author Gaelle Letort
+ */
+public class SegmentIndexTest
+{
+	/** \brief Star shaped polygon with many irregular vertices */
+	private FloatPolygon star( Random rand, int n )
+	{
+		FloatPolygon poly = new FloatPolygon();
+		for ( int i = 0; i < n; i++ )
+		{
+			double ang = 2*Math.PI*i/n;
+			double rad = 40 + 15*rand.nextDouble();
+			poly.addPoint( 60 + rad*Math.cos(ang), 60 + rad*Math.sin(ang) );
+		}
+		return poly;
+	}
+	
+	private double allEdges( FloatPolygon poly, double x, double y )
+	{
+		double res = Double.MAX_VALUE;
+		for ( int i = 0; i < poly.npoints; i++ )
+		{
+			int j = ( i+1 ) % poly.npoints;
+			res = Math.min( res, SegmentIndex.segmentDistance( x, y, poly.xpoints[i], poly.ypoints[i], poly.xpoints[j], poly.ypoints[j] ) );
+		}
+		return res;
+	}
+	
+	private double closestVertex( FloatPolygon poly, double x, double y )
+	{
+		double res = Double.MAX_VALUE;
+		for ( int i = 0; i < poly.npoints; i++ )
+			res = Math.min( res, Math.hypot( x-poly.xpoints[i], y-poly.ypoints[i] ) );
+		return res;
+	}
+	
+	@Test
+	public void sameAsAllEdges()
+	{
+		Random rand = new Random( 7 );
+		FloatPolygon poly = star( rand, 300 );
+		SegmentIndex index = new SegmentIndex( poly );
+		Utils util = new Utils();
+		for ( int p = 0; p < 2000; p++ )
+		{
+			float x = (float) ( 150*rand.nextDouble() - 15 );
+			float y = (float) ( 150*rand.nextDouble() - 15 );
+			double exact = allEdges( poly, x, y );
+			assertEquals( "index at "+x+","+y, exact, index.distance( x, y ), 1e-9 );
+			assertEquals( "utils at "+x+","+y, exact, util.distanceToPolygon( x, y, poly ), 1e-9 );
+			// edges are never further than their vertices
+			assertTrue( "closer than vertices", exact <= closestVertex( poly, x, y ) + 1e-9 );
+		}
+	}
+	
+	@Test
+	public void square()
+	{
+		FloatPolygon sq = new FloatPolygon( new float[]{ 0, 10, 10, 0 }, new float[]{ 0, 0, 10, 10 } );
+		SegmentIndex index = new SegmentIndex( sq );
+		assertEquals( "inside", 4, index.distance( 5, 4 ), 1e-12 );
+		assertEquals( "outside", 3, index.distance( 5, -3 ), 1e-12 );
+		assertEquals( "corner", 5, index.distance( 13, 14 ), 1e-12 );
+		assertEquals( "empty", 10000, new SegmentIndex( new FloatPolygon() ).distance( 1, 1 ), 0 );
+	}
+	
+	@Test
+	public void thicknessOfSquares()
+	{
+		Roi in = new PolygonRoi( new float[]{ 20, 80, 80, 20 }, new float[]{ 20, 20, 80, 80 }, Roi.POLYGON );
+		Roi out = new PolygonRoi( new float[]{ 10, 90, 90, 10 }, new float[]{ 10, 10, 90, 90 }, Roi.POLYGON );
+		assertEquals( "mean thickness", 10, new Utils().roiMeanThickness( in, out ), 1e-9 );
+	}
+}
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * Plugins to segment different oocytes structures, and to extract numerous features to describe them
+ * %%
+ * Copyright (C) 2021 - 2026 Gaelle Letort
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the CIRB nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package cirb.oocytor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.Arrays;
+import java.util.List;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+/**
+ * \brief The batch mask must be split back in the slices of each image, in the order they were added
+ *
+ * @author Gaelle Letort
+ */
+public class UNetBatcherTest
+{
+	private static final int W = 4;
+	private static final int H = 3;
+
+	/** \brief Batch mask of these dimensions, each pixel being slice*100 + its position in the slice */
+	private static Img< FloatType > batch( long... dims )
+	{
+		Img< FloatType > bin = ArrayImgs.floats( dims );
+		Cursor< FloatType > cursor = Views.flatIterable( bin ).cursor();
+		int i = 0;
+		while ( cursor.hasNext() )
+		{
+			cursor.next().set( ( i / (W*H) ) * 100 + i % (W*H) );
+			i++;
+		}
+		return bin;
+	}
+
+	private static void checkSlices( RandomAccessibleInterval< FloatType > part, int first, int n )
+	{
+		assertEquals( "size", (long) W*H*n, Views.iterable( part ).size() );
+		Cursor< FloatType > cursor = Views.flatIterable( part ).cursor();
+		for ( int i = 0; i < W*H*n; i++ )
+			assertEquals( "pixel "+i, ( first + i / (W*H) ) * 100 + i % (W*H), cursor.next().get(), 0 );
+	}
+
+	@Test
+	public void firstSlices()
+	{
+		// a cached image (null) takes no slice of the batch
+		List< ImageStack > inputs = Arrays.asList( new ImageStack( W, H, 3 ), null, new ImageStack( W, H, 1 ), new ImageStack( W, H, 2 ) );
+		assertArrayEquals( new int[] { 0, 3, 3, 4 }, UNetBatcher.firstSlices( inputs ) );
+	}
+
+	@Test
+	public void sliceRanges()
+	{
+		int[] first = { 0, 3, 4 };
+		int[] n = { 3, 1, 2 };
+		// slices along the last axis, or before trailing axes of size 1
+		for ( Img< FloatType > bin : Arrays.asList( batch( W, H, 6 ), batch( W, H, 6, 1 ), batch( W, H, 6, 1, 1 ) ) )
+		{
+			for ( int i = 0; i < first.length; i++ )
+				checkSlices( UNetBatcher.sliceRange( bin, first[ i ], n[ i ], 6 ), first[ i ], n[ i ] );
+		}
+	}
+
+	@Test
+	public void singleSlice()
+	{
+		Img< FloatType > bin = batch( W, H );
+		assertSame( bin, UNetBatcher.sliceRange( bin, 0, 1, 1 ) );
+	}
+
+	@Test
+	public void maskOfEachImage()
+	{
+		Img< FloatType > bin = batch( W, H, 6, 1 );
+		ImagePlus mask = EnsembleMask.toByte( UNetBatcher.sliceRange( bin, 3, 2, 6 ), "mask" );
+		assertEquals( W, mask.getWidth() );
+		assertEquals( H, mask.getHeight() );
+		assertEquals( 2, mask.getStackSize() );
+	}
+}